@@ -50,6 +50,33 @@ public:
                msg + "\n";
     }
 
+    static string buildSend(const string &topic, const string &msg, const string &transaction)
+    {
+        return "SEND\n"
+               "destination:" +
+               topic + "\n"
+                       "transaction:" +
+               transaction + "\n"
+                             "\n" +
+               msg + "\n";
+    }
+
+    static string buildBegin(const string &transaction)
+    {
+        return "BEGIN\n"
+               "transaction:" +
+               transaction + "\n"
+                             "\n";
+    }
+
+    static string buildCommit(const string &transaction)
+    {
+        return "COMMIT\n"
+               "transaction:" +
+               transaction + "\n"
+                             "\n";
+    }
+
     static string buildDisconnect(int reciept)
     {
         return "DISCONNECT\n"
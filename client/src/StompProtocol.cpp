@@ -138,6 +138,9 @@ bool StompProtocol::processInput(const std::string &line, ConnectionHandler &Con
             std::cout << "Failed to parse events file: " << e.what() << std::endl;
             return true;
         }
+        // the events are sent in one transaction, so the server fans them out as one batch
+        std::string transaction = "report-" + std::to_string(receiptIdCounter++);
+        ConnectionHandler.sendFrameAscii(StompEncoder::buildBegin(transaction), '\0');
         // for each event build and send a SEND frame
         for (const Event &event : parsedEvents.events)
         {
@@ -170,9 +173,10 @@ bool StompProtocol::processInput(const std::string &line, ConnectionHandler &Con
 
             std::string topic = parsedEvents.team_a_name + "_" + parsedEvents.team_b_name;
             ;
-            std::string frame = StompEncoder::buildSend(topic, body.str());
+            std::string frame = StompEncoder::buildSend(topic, body.str(), transaction);
             ConnectionHandler.sendFrameAscii(frame, '\0');
         }
+        ConnectionHandler.sendFrameAscii(StompEncoder::buildCommit(transaction), '\0');
         return true;
     }
     else if (command == "summary")
@@ -1,5 +1,9 @@
 package bgu.spl.net.api;
 
+import java.nio.ByteBuffer;
+import java.util.function.Consumer;
+import java.util.function.IntFunction;
+
 public interface MessageEncoderDecoder<T> {
 
     /**
@@ -11,6 +15,24 @@ public interface MessageEncoderDecoder<T> {
      */
     T decodeNextByte(byte nextByte);
 
+    /**
+     * add all the remaining bytes of the given buffer to the decoding process.
+     * the default implementation feeds them one by one to decodeNextByte,
+     * encoders that can scan for their delimiter should override it and copy
+     * whole ranges at once.
+     *
+     * @param buffer the bytes to decode, consumed up to its limit
+     * @param consumer receives every message completed by these bytes, in order
+     */
+    default void decode(ByteBuffer buffer, Consumer<T> consumer) {
+        while (buffer.hasRemaining()) {
+            T nextMessage = decodeNextByte(buffer.get());
+            if (nextMessage != null) {
+                consumer.accept(nextMessage);
+            }
+        }
+    }
+
     /**
      * encodes the given message to bytes array
      *
@@ -19,4 +41,21 @@ public interface MessageEncoderDecoder<T> {
      */
     byte[] encode(T message);
 
+    /**
+     * encodes the given message into a buffer it gets from the allocator.
+     * the default implementation copies the result of encode, encoders that
+     * can write their bytes straight into the buffer should override it.
+     *
+     * @param message the message to encode
+     * @param allocator gives a cleared buffer of at least the asked size
+     * @return the encoded message, flipped and ready to be written
+     */
+    default ByteBuffer encode(T message, IntFunction<ByteBuffer> allocator) {
+        byte[] bytes = encode(message);
+        ByteBuffer buffer = allocator.apply(bytes.length);
+        buffer.put(bytes);
+        buffer.flip();
+        return buffer;
+    }
+
 }
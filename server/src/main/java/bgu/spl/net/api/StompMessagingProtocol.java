@@ -1,5 +1,8 @@
 package bgu.spl.net.api;
 
+import java.nio.ByteBuffer;
+import java.util.function.BooleanSupplier;
+
 import bgu.spl.net.srv.Connections;
 
 public interface StompMessagingProtocol<T>  {
@@ -9,9 +12,30 @@ public interface StompMessagingProtocol<T>  {
     void start(int connectionId, Connections<T> connections);
     
     void process(T message);
+
+    /**
+     * decodes bytes read from the client and processes every message in them, in order.
+     * by default the decoder builds whole messages, a protocol that knows its decoder may
+     * read the messages in place instead.
+     *
+     * @param stop checked before every message, once true the rest are dropped
+     */
+    default void process(ByteBuffer bytes, MessageEncoderDecoder<T> decoder, BooleanSupplier stop) {
+        decoder.decode(bytes, message -> {
+            if (!stop.getAsBoolean()) {
+                process(message);
+            }
+        });
+    }
 	
 	/**
      * @return true if the connection should be terminated
      */
     boolean shouldTerminate();
+
+    /**
+     * Called once when the connection is closed, for any reason
+     */
+    default void onClose() {
+    }
 }
@@ -10,9 +10,12 @@ import java.io.PrintWriter;
 import java.net.Socket;
 import java.nio.charset.StandardCharsets;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class Database {
 	private final ConcurrentHashMap<Integer, String> activeLogins;
+	// a lock rather than synchronized, so virtual threads waiting on the SQL server are not pinned
+	private final ReentrantLock loginLock = new ReentrantLock();
 	private final String sqlHost;
 	private final int sqlPort;
 
@@ -75,16 +78,21 @@ public class Database {
 		return str.replace("'", "''");
 	}
 	// login status number codes
-	public synchronized LoginStatus login(int connectionId, String username, String password) {
-		if (activeLogins.containsValue(username)) {
-			return LoginStatus.ALREADY_LOGGED_IN;
-		}
+	public LoginStatus login(int connectionId, String username, String password) {
+		loginLock.lock();
+		try {
+			if (activeLogins.containsValue(username)) {
+				return LoginStatus.ALREADY_LOGGED_IN;
+			}
 
-		if (addNewUserCase(connectionId, username, password)) {
-			return LoginStatus.ADDED_NEW_USER;
-		}
+			if (addNewUserCase(connectionId, username, password)) {
+				return LoginStatus.ADDED_NEW_USER;
+			}
 
-		return userExistsCase(connectionId, username, password);
+			return userExistsCase(connectionId, username, password);
+		} finally {
+			loginLock.unlock();
+		}
 	}
 	// log user login time in the database
 	private void logLogin(String username) {
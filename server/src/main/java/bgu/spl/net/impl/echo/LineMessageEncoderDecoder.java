@@ -1,8 +1,10 @@
 package bgu.spl.net.impl.echo;
 
 import bgu.spl.net.api.MessageEncoderDecoder;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
+import java.util.function.Consumer;
 
 public class LineMessageEncoderDecoder implements MessageEncoderDecoder<String> {
 
@@ -21,19 +23,44 @@ public class LineMessageEncoderDecoder implements MessageEncoderDecoder<String>
         return null; //not a line yet
     }
 
+    @Override
+    public void decode(ByteBuffer buffer, Consumer<String> consumer) {
+        while (buffer.hasRemaining()) {
+            //scan for the end of the line and copy everything before it at once
+            int start = buffer.position();
+            int end = start;
+            while (end < buffer.limit() && buffer.get(end) != '\n') {
+                end++;
+            }
+
+            int length = end - start;
+            ensureCapacity(len + length);
+            buffer.get(bytes, len, length);
+            len += length;
+
+            if (end < buffer.limit()) {
+                buffer.get(); //skip the '\n'
+                consumer.accept(popString());
+            }
+        }
+    }
+
     @Override
     public byte[] encode(String message) {
         return (message + "\n").getBytes(); //uses utf8 by default
     }
 
     private void pushByte(byte nextByte) {
-        if (len >= bytes.length) {
-            bytes = Arrays.copyOf(bytes, len * 2);
-        }
-
+        ensureCapacity(len + 1);
         bytes[len++] = nextByte;
     }
 
+    private void ensureCapacity(int size) {
+        if (size > bytes.length) {
+            bytes = Arrays.copyOf(bytes, Math.max(size, bytes.length * 2));
+        }
+    }
+
     private String popString() {
         //notice that we explicitly requesting that the string will be decoded from UTF-8
         //this is not actually required as it is the default encoding in java.
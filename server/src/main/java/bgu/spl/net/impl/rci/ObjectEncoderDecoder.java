@@ -9,6 +9,7 @@ import java.io.ObjectOutput;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.nio.ByteBuffer;
+import java.util.function.Consumer;
 
 public class ObjectEncoderDecoder implements MessageEncoderDecoder<Serializable> {
 
@@ -38,6 +39,25 @@ public class ObjectEncoderDecoder implements MessageEncoderDecoder<Serializable>
         return null;
     }
 
+    @Override
+    public void decode(ByteBuffer buffer, Consumer<Serializable> consumer) {
+        while (buffer.hasRemaining()) {
+            if (objectBytes == null) { //still reading the length, which is only 4 bytes
+                decodeNextByte(buffer.get());
+            } else {
+                //copy as much of the object as this buffer holds
+                int length = Math.min(buffer.remaining(), objectBytes.length - objectBytesIndex);
+                buffer.get(objectBytes, objectBytesIndex, length);
+                objectBytesIndex += length;
+                if (objectBytesIndex == objectBytes.length) {
+                    Serializable result = deserializeObject();
+                    objectBytes = null;
+                    consumer.accept(result);
+                }
+            }
+        }
+    }
+
     @Override
     public byte[] encode(Serializable message) {
         return serializeObject(message);
@@ -0,0 +1,247 @@
+package bgu.spl.net.impl.stomp;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The messages of a subscription with ack:client or ack:client-individual.
+ * <p>
+ * At most prefetch messages are sent and not acknowledged at any time, the
+ * rest wait here until the client acknowledges some. With ack:client an ACK
+ * or NACK covers the message and every message sent before it, with
+ * ack:client-individual only the message itself. NACKed messages are sent
+ * again, before the ones still waiting. At most maxWaiting messages wait,
+ * the oldest are dropped after that.
+ * <p>
+ * The window is synchronized, but messages are delivered after the lock is
+ * released, so a connection that is slow to take them does not hold up the
+ * stripe offering new ones or the client's ACKs. Deliveries still go out one
+ * at a time and in the order of their message ids: whoever finds no one
+ * delivering sends everything that is ready, the others only queue theirs.
+ * <p>
+ * The prefetch default is set with the system property stomp.ack.prefetch
+ * (default 64) and the waiting limit with stomp.ack.maxWaiting (default 10000).
+ */
+/* package */ class AckWindow {
+
+    public static final int DEFAULT_PREFETCH = Integer.getInteger("stomp.ack.prefetch", 64);
+    private static final int MAX_WAITING = Integer.getInteger("stomp.ack.maxWaiting", 10000);
+
+    /**
+     * sends a message of the subscription to the client
+     */
+    public interface Delivery {
+        void deliver(long messageId, ByteBuffer message, boolean redelivered);
+    }
+
+    private final boolean individual;
+    private final int prefetch;
+    private final String owner;
+    // sent and not acknowledged yet, by message id in the order they were sent
+    private final LinkedHashMap<Long, Pending> inFlight = new LinkedHashMap<>();
+    private final ArrayDeque<Pending> waiting = new ArrayDeque<>();
+    // moved to inFlight and not delivered yet
+    private final ArrayDeque<Outgoing> outgoing = new ArrayDeque<>();
+    // a thread is delivering outgoing
+    private boolean delivering = false;
+    private boolean closed = false;
+
+    /**
+     * @param individual true for ack:client-individual, false for ack:client
+     * @param prefetch most messages sent and not acknowledged
+     * @param owner the user that subscribed, what is left unacknowledged when the
+     *              subscription ends is sent again when this user subscribes again
+     */
+    public AckWindow(boolean individual, int prefetch, String owner) {
+        this.individual = individual;
+        this.prefetch = prefetch;
+        this.owner = owner;
+    }
+
+    public String owner() {
+        return owner;
+    }
+
+    /**
+     * @param delivery always the same one for a window, it may deliver what other threads queued
+     */
+    public void offer(ByteBuffer message, Delivery delivery) {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            if (waiting.size() >= MAX_WAITING) {
+                waiting.poll();
+            }
+            waiting.add(new Pending(message, false));
+            fill();
+        }
+        deliver(delivery);
+    }
+
+    /**
+     * queues messages left unacknowledged by an earlier subscription, ahead of everything else
+     * @return false if the subscription ended already, the messages were not taken then
+     */
+    public boolean redeliver(List<ByteBuffer> messages, Delivery delivery) {
+        synchronized (this) {
+            if (closed) {
+                return false;
+            }
+            for (int i = messages.size() - 1; i >= 0; i--) {
+                waiting.addFirst(new Pending(messages.get(i), true));
+            }
+            fill();
+        }
+        deliver(delivery);
+        return true;
+    }
+
+    /**
+     * @return false if the message is not waiting for an ACK in this subscription
+     */
+    public boolean ack(long messageId, Delivery delivery) {
+        synchronized (this) {
+            if (take(messageId) == null) {
+                return false;
+            }
+            fill();
+        }
+        deliver(delivery);
+        return true;
+    }
+
+    /**
+     * @return false if the message is not waiting for an ACK in this subscription
+     */
+    public boolean nack(long messageId, Delivery delivery) {
+        synchronized (this) {
+            List<Pending> rejected = take(messageId);
+            if (rejected == null) {
+                return false;
+            }
+            for (int i = rejected.size() - 1; i >= 0; i--) {
+                waiting.addFirst(new Pending(rejected.get(i).message, true));
+            }
+            fill();
+        }
+        deliver(delivery);
+        return true;
+    }
+
+    /**
+     * @return true if the message is waiting for an ACK in this subscription
+     */
+    public synchronized boolean isInFlight(long messageId) {
+        return inFlight.containsKey(messageId);
+    }
+
+    /**
+     * ends the subscription
+     * @return the messages that were never acknowledged, oldest first
+     */
+    public synchronized List<ByteBuffer> close() {
+        closed = true;
+        List<ByteBuffer> unacked = new ArrayList<>(inFlight.size() + waiting.size());
+        for (Pending pending : inFlight.values()) {
+            unacked.add(pending.message);
+        }
+        for (Pending pending : waiting) {
+            unacked.add(pending.message);
+        }
+        inFlight.clear();
+        waiting.clear();
+        // these are in inFlight too, so they are in unacked already
+        outgoing.clear();
+        return unacked;
+    }
+
+    // removes what the ACK or NACK of messageId covers from the in flight messages
+    private List<Pending> take(long messageId) {
+        if (!inFlight.containsKey(messageId)) {
+            return null;
+        }
+        List<Pending> taken = new ArrayList<>();
+        if (individual) {
+            taken.add(inFlight.remove(messageId));
+            return taken;
+        }
+        Iterator<Map.Entry<Long, Pending>> it = inFlight.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Long, Pending> entry = it.next();
+            taken.add(entry.getValue());
+            it.remove();
+            if (entry.getKey() == messageId) {
+                break;
+            }
+        }
+        return taken;
+    }
+
+    // called with the lock held, moves what the prefetch allows to inFlight and queues it for deliver
+    private void fill() {
+        while (!closed && inFlight.size() < prefetch && !waiting.isEmpty()) {
+            Pending next = waiting.poll();
+            long messageId = MessageIds.next();
+            inFlight.put(messageId, next);
+            outgoing.add(new Outgoing(messageId, next));
+        }
+    }
+
+    // called without the lock, sends what is queued unless another thread already does
+    private void deliver(Delivery delivery) {
+        synchronized (this) {
+            if (delivering || outgoing.isEmpty()) {
+                return;
+            }
+            delivering = true;
+        }
+        boolean done = false;
+        try {
+            while (true) {
+                Outgoing next;
+                synchronized (this) {
+                    next = outgoing.poll();
+                    if (next == null) {
+                        delivering = false;
+                        done = true;
+                        return;
+                    }
+                }
+                delivery.deliver(next.messageId, next.pending.message, next.pending.redelivered);
+            }
+        } finally {
+            if (!done) {
+                // the delivery threw, let the next caller deliver the rest
+                synchronized (this) {
+                    delivering = false;
+                }
+            }
+        }
+    }
+
+    private static class Outgoing {
+        final long messageId;
+        final Pending pending;
+
+        Outgoing(long messageId, Pending pending) {
+            this.messageId = messageId;
+            this.pending = pending;
+        }
+    }
+
+    private static class Pending {
+        final ByteBuffer message;
+        final boolean redelivered;
+
+        Pending(ByteBuffer message, boolean redelivered) {
+            this.message = message;
+            this.redelivered = redelivered;
+        }
+    }
+}
@@ -0,0 +1,391 @@
+package bgu.spl.net.impl.stomp;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.Consumer;
+
+/**
+ * An append only log of the messages sent to one destination, so clients can
+ * replay what they missed (SUBSCRIBE with a replay-from header).
+ * <p>
+ * The log is a directory of memory mapped segment files, each named after the
+ * offset of its first message. A record is [int length][long time millis][the
+ * encoded message], and a zero length marks the end of a segment. Every segment
+ * keeps an index from offset to position in memory, rebuilt by scanning the
+ * segment when the log is opened. Once a segment is full a new one is started,
+ * and only the last stomp.log.retainSegments (default 16) are kept.
+ * <p>
+ * Appending and replaying are done by the destination's dispatch stripe only,
+ * the flusher thread only forces segments to disk.
+ * <p>
+ * Configured with system properties:
+ * stomp.log.dir (default "channel-log"),
+ * stomp.log.segmentBytes (default 16m),
+ * stomp.log.durability (for every destination, default NONE) and
+ * stomp.log.durability.&lt;destination&gt; (for one destination). The default
+ * only applies to the destinations that have subscribers, a destination nobody
+ * subscribed to is only logged if it has a durability of its own.
+ */
+/* package */ class ChannelLog {
+
+    public enum Durability {
+        // no log
+        NONE,
+        // logged, the sender does not wait for it
+        ASYNC,
+        // RECEIPT once the message is written to the mapped segment (the OS page cache)
+        PAGE_CACHE,
+        // RECEIPT once the segment was forced to disk, forces are shared by all the messages waiting for them
+        FSYNC
+    }
+
+    private static final String LOG_DIR = System.getProperty("stomp.log.dir", "channel-log");
+    private static final int SEGMENT_BYTES = Integer.getInteger("stomp.log.segmentBytes", 16 << 20);
+    private static final int RETAIN_SEGMENTS = Math.max(1, Integer.getInteger("stomp.log.retainSegments", 16));
+    private static final Durability DEFAULT_DURABILITY = Durability.valueOf(System.getProperty("stomp.log.durability", Durability.NONE.name()));
+
+    // length + time
+    private static final int RECORD_HEADER_SIZE = 4 + 8;
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String EARLIEST = "earliest";
+    private static final String TIME_PREFIX = "time:";
+
+    private final File dir;
+    private final Durability durability;
+    private final Flusher flusher;
+    private final List<Segment> segments = new ArrayList<>();
+    private Segment active;
+
+    private ChannelLog(File dir, Durability durability, Flusher flusher) throws IOException {
+        this.dir = dir;
+        this.durability = durability;
+        this.flusher = flusher;
+        File[] files = dir.listFiles((d, name) -> name.endsWith(SEGMENT_SUFFIX));
+        if (files != null) {
+            Arrays.sort(files);
+            for (File file : files) {
+                String name = file.getName();
+                long baseOffset;
+                try {
+                    baseOffset = Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+                } catch (NumberFormatException ex) {
+                    // not one of ours
+                    System.err.println("skipping " + file + ", it is not a log segment");
+                    continue;
+                }
+                segments.add(new Segment(file, baseOffset, (int) file.length()));
+            }
+        }
+        if (segments.isEmpty()) {
+            roll(0, SEGMENT_BYTES);
+        } else {
+            active = segments.get(segments.size() - 1);
+        }
+    }
+
+    /**
+     * @return how the messages of the destination are logged
+     */
+    public static Durability durabilityOf(String destination) {
+        String durability = System.getProperty("stomp.log.durability." + destination);
+        return durability == null ? DEFAULT_DURABILITY : Durability.valueOf(durability);
+    }
+
+    /**
+     * @return true if the destination is logged by a durability of its own, not only by the default
+     */
+    public static boolean isLoggedByName(String destination) {
+        String durability = System.getProperty("stomp.log.durability." + destination);
+        return durability != null && Durability.valueOf(durability) != Durability.NONE;
+    }
+
+    /**
+     * @return the log of the destination, null if it is not logged
+     */
+    public static ChannelLog open(String destination, Flusher flusher) throws IOException {
+        Durability durability = durabilityOf(destination);
+        if (durability == Durability.NONE) {
+            return null;
+        }
+        File dir = new File(LOG_DIR, fileNameOf(destination));
+        // the name can't leave the log dir, but a destination is sent by clients so make sure
+        if (!dir.getCanonicalFile().getParentFile().equals(new File(LOG_DIR).getCanonicalFile())) {
+            throw new IOException("the log of " + destination + " would not be in " + LOG_DIR);
+        }
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("could not create " + dir);
+        }
+        return new ChannelLog(dir, durability, flusher);
+    }
+
+    /**
+     * @return true if the value is a replay position - "earliest", an offset or "time:" and epoch millis
+     */
+    public static boolean isPosition(String position) {
+        try {
+            if (position.equals(EARLIEST)) {
+                return true;
+            } else if (position.startsWith(TIME_PREFIX)) {
+                Long.parseLong(position.substring(TIME_PREFIX.length()));
+            } else {
+                return Long.parseLong(position) >= 0;
+            }
+            return true;
+        } catch (NumberFormatException ex) {
+            return false;
+        }
+    }
+
+    public Durability durability() {
+        return durability;
+    }
+
+    /**
+     * @return the offset the next appended message gets
+     */
+    public long nextOffset() {
+        return active.baseOffset + active.count;
+    }
+
+    /**
+     * appends an encoded message
+     * @param onStored run once the message is as durable as the destination asks for, may be null.
+     *                 if the message can't be logged it runs right away, the message is still sent
+     */
+    public void append(byte[] message, Runnable onStored) {
+        int size = RECORD_HEADER_SIZE + message.length;
+        // leave room for the end marker
+        if (active.map.remaining() < size + 4) {
+            Segment previous = active;
+            try {
+                roll(nextOffset(), Math.max(SEGMENT_BYTES, size + 4));
+            } catch (IOException ex) {
+                // the next message tries again
+                ex.printStackTrace();
+                if (onStored != null) {
+                    onStored.run();
+                }
+                return;
+            }
+            if (durability == Durability.FSYNC) {
+                // messages appended without a callback, like the start of a batch, may still be
+                // in it. it is forced before the callbacks of anything appended after it run
+                flusher.sync(previous.map, null);
+            }
+        }
+        active.append(message, System.currentTimeMillis());
+        if (onStored == null) {
+            return;
+        }
+        if (durability == Durability.FSYNC) {
+            flusher.sync(active.map, onStored);
+        } else {
+            onStored.run();
+        }
+    }
+
+    /**
+     * @return the first offset at the given position, never past nextOffset()
+     */
+    public long offsetOf(String position) {
+        long earliest = segments.get(0).baseOffset;
+        if (position.equals(EARLIEST)) {
+            return earliest;
+        } else if (position.startsWith(TIME_PREFIX)) {
+            long time = Long.parseLong(position.substring(TIME_PREFIX.length()));
+            for (Segment segment : segments) {
+                int index = segment.firstIndexAtOrAfter(time);
+                if (index < segment.count) {
+                    return segment.baseOffset + index;
+                }
+            }
+            return nextOffset();
+        }
+        return Math.min(Math.max(Long.parseLong(position), earliest), nextOffset());
+    }
+
+    /**
+     * hands every message from the offset on to the consumer, as read-only
+     * views of the mapped segments - nothing is copied
+     */
+    public void replay(long fromOffset, Consumer<ByteBuffer> consumer) {
+        for (Segment segment : segments) {
+            long end = segment.baseOffset + segment.count;
+            for (long offset = Math.max(fromOffset, segment.baseOffset); offset < end; offset++) {
+                consumer.accept(segment.message((int) (offset - segment.baseOffset)));
+            }
+        }
+    }
+
+    /**
+     * forces what was not forced yet to disk, called when the server closes
+     */
+    public void close() {
+        active.map.force();
+    }
+
+    private void roll(long baseOffset, int size) throws IOException {
+        active = new Segment(new File(dir, String.format("%020d", baseOffset) + SEGMENT_SUFFIX), baseOffset, size);
+        segments.add(active);
+        while (segments.size() > RETAIN_SEGMENTS) {
+            Segment oldest = segments.remove(0);
+            if (!oldest.file.delete()) {
+                System.err.println("could not delete old log segment " + oldest.file);
+            }
+        }
+    }
+
+    // URL encoded, the dots too so "." and ".." are not the log dir and its parent
+    private static String fileNameOf(String destination) {
+        try {
+            return URLEncoder.encode(destination, "UTF-8").replace(".", "%2E");
+        } catch (UnsupportedEncodingException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private static class Segment {
+        final File file;
+        final long baseOffset;
+        final MappedByteBuffer map;
+        // position of every record in the segment, by offset - baseOffset
+        int[] positions = new int[1024];
+        int count = 0;
+
+        Segment(File file, long baseOffset, int size) throws IOException {
+            this.file = file;
+            this.baseOffset = baseOffset;
+            // the mapping stays valid after the file is closed
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                this.map = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, Math.max(size, raf.length()));
+            }
+            // rebuilding the index, an empty file is all zeros so it ends right away
+            int length;
+            while (map.remaining() >= RECORD_HEADER_SIZE && (length = map.getInt(map.position())) > 0) {
+                index(map.position());
+                map.position(map.position() + RECORD_HEADER_SIZE + length);
+            }
+        }
+
+        void append(byte[] message, long time) {
+            int position = map.position();
+            map.putLong(position + 4, time);
+            map.position(position + RECORD_HEADER_SIZE);
+            map.put(message);
+            // the length goes in last, so a half written record looks like the end of the segment
+            map.putInt(position, message.length);
+            index(position);
+        }
+
+        ByteBuffer message(int index) {
+            int position = positions[index];
+            ByteBuffer view = map.asReadOnlyBuffer();
+            view.limit(position + RECORD_HEADER_SIZE + map.getInt(position));
+            view.position(position + RECORD_HEADER_SIZE);
+            return view.slice();
+        }
+
+        // binary search on the record times, which only go up
+        int firstIndexAtOrAfter(long time) {
+            int low = 0;
+            int high = count;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (map.getLong(positions[mid] + 4) < time) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+
+        private void index(int position) {
+            if (count == positions.length) {
+                positions = Arrays.copyOf(positions, count * 2);
+            }
+            positions[count++] = position;
+        }
+    }
+
+    /**
+     * Forces the segments of FSYNC logs to disk on its own thread. Whatever was
+     * appended while a force was running is forced together by the next one, and
+     * the waiting callbacks run after it.
+     */
+    /* package */ static class Flusher implements Runnable {
+        private final BlockingQueue<PendingSync> pending = new LinkedBlockingQueue<>();
+        private volatile Thread thread;
+
+        // onSynced may be null, to only force the segment
+        void sync(MappedByteBuffer segment, Runnable onSynced) {
+            if (thread == null) {
+                start();
+            }
+            pending.add(new PendingSync(segment, onSynced));
+        }
+
+        private synchronized void start() {
+            if (thread == null) {
+                thread = new Thread(this, "log-flusher");
+                thread.setDaemon(true);
+                thread.start();
+            }
+        }
+
+        @Override
+        public void run() {
+            List<PendingSync> batch = new ArrayList<>();
+            try {
+                while (!Thread.currentThread().isInterrupted()) {
+                    batch.add(pending.take());
+                    pending.drainTo(batch);
+                    MappedByteBuffer forced = null;
+                    for (PendingSync sync : batch) {
+                        // consecutive messages are almost always in the same segment
+                        if (sync.segment != forced) {
+                            sync.segment.force();
+                            forced = sync.segment;
+                        }
+                    }
+                    for (PendingSync sync : batch) {
+                        if (sync.onSynced != null) {
+                            sync.onSynced.run();
+                        }
+                    }
+                    batch.clear();
+                }
+            } catch (InterruptedException ex) {
+                // the server is closing
+            }
+        }
+
+        void close() {
+            Thread current = thread;
+            if (current != null) {
+                current.interrupt();
+            }
+        }
+    }
+
+    private static class PendingSync {
+        final MappedByteBuffer segment;
+        final Runnable onSynced;
+
+        PendingSync(MappedByteBuffer segment, Runnable onSynced) {
+            this.segment = segment;
+            this.onSynced = onSynced;
+        }
+    }
+}
@@ -1,145 +1,1129 @@
 package bgu.spl.net.impl.stomp;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.Deflater;
 
-import java.util.List;
+import javax.management.ObjectName;
+
+import bgu.spl.net.srv.ActorThreadPool;
+import bgu.spl.net.srv.BufferPool;
 import bgu.spl.net.srv.ConnectionHandler;
 import bgu.spl.net.srv.Connections;
+import bgu.spl.net.srv.Metrics;
 
 public class ConnectionsImpl<T> implements Connections<T> {
+    private static final byte[] MESSAGE_SUBSCRIPTION_HEADER = "MESSAGE\nsubscription:".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] MESSAGE_ID_HEADER = "\nmessage-id:".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] ACK_HEADER = "\nack:".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] REDELIVERED_HEADER = "\nredelivered:true".getBytes(StandardCharsets.UTF_8);
+    private static final String OFFSET_HEADER = "offset:";
+    private static final String SEQUENCE_HEADER = "sequence:";
+    // all the headers with the longest numbers they can hold
+    private static final int SUBSCRIBER_PART_MAX_SIZE = MESSAGE_SUBSCRIPTION_HEADER.length + MESSAGE_ID_HEADER.length
+            + ACK_HEADER.length + REDELIVERED_HEADER.length + 3 * 20 + 1;
+
+    // channels with at least this many subscribers are fanned out on the fan-out lanes, in parallel
+    private static final int PARALLEL_FANOUT_THRESHOLD = Integer.getInteger("stomp.fanout.parallelThreshold", 1000);
+    private static final int FANOUT_LANES = Integer.getInteger("stomp.fanout.lanes", Runtime.getRuntime().availableProcessors());
+    private static final int DISPATCH_STRIPES = Integer.getInteger("stomp.dispatch.stripes", Runtime.getRuntime().availableProcessors());
+
+    /**
+     * the destination the server publishes its metrics to, clients can only subscribe to it
+     */
+    public static final String STATS_DESTINATION = "/$SYS/stats";
+    private static final long STATS_PERIOD_SECONDS = Long.getLong("stomp.metrics.publishSeconds", 10);
+    private static final LongAdder MESSAGES_OUT = Metrics.framesOut("MESSAGE");
+    // frames sent as messages that are none of the server's frames
+    private static final LongAdder OTHERS_OUT = Metrics.framesOut("OTHER");
+
+    // what is kept of the messages ended subscriptions left unacknowledged: the newest of them per
+    // owner and destination, for how long, and for how many owner and destination pairs at most
+    private static final int KEEP_UNACKED = Integer.getInteger("stomp.ack.keepUnacked", 1000);
+    private static final long KEEP_UNACKED_MILLIS = TimeUnit.SECONDS.toMillis(Long.getLong("stomp.ack.keepUnackedSeconds", 600));
+    private static final int KEEP_UNACKED_ENTRIES = Integer.getInteger("stomp.ack.keepUnackedEntries", 10000);
+
+    // bodies of at least this many bytes are deflated for the clients that accept it
+    private static final int COMPRESS_MIN_BYTES = Integer.getInteger("stomp.compress.minBytes", 1024);
+    private static final int COMPRESS_LEVEL = Integer.getInteger("stomp.compress.level", Deflater.DEFAULT_COMPRESSION);
+    private static final String DEFLATE_HEADERS = "content-encoding:deflate\ncontent-length:";
+    // every stripe compresses with its own deflater
+    private static final ThreadLocal<Deflater> DEFLATERS = ThreadLocal.withInitial(() -> new Deflater(COMPRESS_LEVEL));
+
     // Fields:
-    // connecting between client (connection id) and client handler
-    private final ConcurrentHashMap<Integer, ConnectionHandler<T>> connectedHandlers = new ConcurrentHashMap<>();
-    // keeping "CopyOnWriteArrayList" of subscriptions per channel
-    private final ConcurrentHashMap<String, CopyOnWriteArrayList<ClientSub>> channelSubscribers = new ConcurrentHashMap<>();
-    // keeping channels per client (connection id)
-    private final ConcurrentHashMap<Integer, CopyOnWriteArrayList<String>> clientActiveSubscriptions = new ConcurrentHashMap<>();
-    // atomic counter for serial number of messages
-    private final AtomicInteger messageIdCounter = new AtomicInteger(0);
+    // connecting between client (connection id) and the client's handler and subscriptions
+    private final IntMap<Client<T>> clients = new IntMap<>();
+    // the subscribers of every channel
+    private final ConcurrentHashMap<String, Channel<T>> channels = new ConcurrentHashMap<>();
+    // the wildcard subscriptions, matched against every channel
+    private final TopicTrie<ClientSub<T>> patterns = new TopicTrie<>();
+    // the channels again, by level, so a pattern that changed finds the channels it matches without
+    // looking at the others. a channel is in it before it is in the map
+    private final TopicTrie<Channel<T>> channelsByLevel = new TopicTrie<>();
+    // a subscriber always lands on the same lane and a lane runs its tasks in order,
+    // so every subscriber still gets the channel's messages in order
+    private final ActorThreadPool fanoutPool = new ActorThreadPool(FANOUT_LANES);
+    private final ActorThreadPool.Mailbox[] fanoutLanes = new ActorThreadPool.Mailbox[FANOUT_LANES];
+    // every channel is published from one stripe, so its messages have a single total order
+    // no matter how many clients publish to it, and the publishers do not wait for the fan-out
+    private final ActorThreadPool dispatchPool = new ActorThreadPool(DISPATCH_STRIPES);
+    private final ActorThreadPool.Mailbox[] dispatchStripes = new ActorThreadPool.Mailbox[DISPATCH_STRIPES];
+    // forces the FSYNC channel logs to disk
+    private final ChannelLog.Flusher logFlusher = new ChannelLog.Flusher();
+    // messages that ended subscriptions left unacknowledged, by owner and destination,
+    // sent again when the owner subscribes to the destination again
+    private final ConcurrentHashMap<String, Unacked> unacked = new ConcurrentHashMap<>();
+    // when the expired entries of unacked are looked for next
+    private volatile long nextUnackedSweep = 0;
+    // publishes the metrics to STATS_DESTINATION, null if stomp.metrics.publishSeconds is 0
+    private final ScheduledExecutorService statsPublisher;
+    // the published count of every destination at the last stats message, only used by statsPublisher
+    private final Map<String, Long> lastPublished = new HashMap<>();
+    // the other server instances, null if this one runs alone
+    private final Federation federation;
+
+    public ConnectionsImpl() {
+        for (int i = 0; i < fanoutLanes.length; i++) {
+            fanoutLanes[i] = new ActorThreadPool.Mailbox();
+        }
+        for (int i = 0; i < dispatchStripes.length; i++) {
+            dispatchStripes[i] = new ActorThreadPool.Mailbox();
+        }
+        if (STATS_PERIOD_SECONDS > 0) {
+            statsPublisher = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "stats-publisher");
+                thread.setDaemon(true);
+                return thread;
+            });
+            statsPublisher.scheduleAtFixedRate(this::publishStats, STATS_PERIOD_SECONDS, STATS_PERIOD_SECONDS,
+                    TimeUnit.SECONDS);
+        } else {
+            statsPublisher = null;
+        }
+        // last, the peers may send us messages as soon as it is up
+        federation = Federation.fromSystemProperties(this);
+    }
 
     public boolean send(int connectionId, T msg) {
-        ConnectionHandler<T> handler = connectedHandlers.get(connectionId);
+        Client<T> client = clients.get(connectionId);
         // checking if we have the connectionID stored, if not - return false
-        if (handler == null) {
+        if (client == null) {
             return false;
         }
         // send the message to the client and return true;
-        handler.send(msg);
+        framesOutOf(msg).increment();
+        client.handler.send(msg);
         return true;
     }
 
+    // the frames-out counter of a frame sent as a message, found without copying its command
+    private static LongAdder framesOutOf(Object msg) {
+        if (msg instanceof String) {
+            String frame = (String) msg;
+            if (frame.startsWith("MESSAGE\n")) {
+                return MESSAGES_OUT;
+            } else if (frame.startsWith("RECEIPT\n")) {
+                return StompFrameWriter.RECEIPT;
+            } else if (frame.startsWith("ERROR\n")) {
+                return StompFrameWriter.ERROR;
+            } else if (frame.startsWith("CONNECTED\n")) {
+                return StompFrameWriter.CONNECTED;
+            }
+        }
+        return OTHERS_OUT;
+    }
+
     public void send(String channel, T msg) {
-        // getting the list of the relevant subs for the specific given channel
-        CopyOnWriteArrayList<ClientSub> subscribers = channelSubscribers.get(channel);
-        if (subscribers == null) {
+        send(channel, msg, null);
+    }
+
+    /**
+     * sends a frame that is already encoded, e.g. by StompFrameWriter, without
+     * making a message of it. the buffer is handed over to the connection,
+     * which gives it back to the BufferPool once it is written.
+     * @param sent the frames-out counter of the frame's command, see Metrics.framesOut
+     * @return false if the connection is gone, the buffer is released then
+     */
+    public boolean sendFrame(int connectionId, LongAdder sent, ByteBuffer frame) {
+        Client<T> client = clients.get(connectionId);
+        if (client == null) {
+            BufferPool.release(frame);
+            return false;
+        }
+        sent.increment();
+        client.handler.sendEncoded(false, frame);
+        return true;
+    }
+
+    /**
+     * sends a message to a channel
+     * @param onStored run once the message is stored as the channel's log durability asks for,
+     *                 right away if the sender does not wait for the log, may be null
+     */
+    public void send(String channel, T msg, Runnable onStored) {
+        sendAll(channel, Collections.singletonList(msg), onStored);
+    }
+
+    /**
+     * sends messages to a channel as one batch - they are encoded in one pass and every
+     * subscriber gets them in a single write, in order
+     * @param onStored run once all the messages are stored as the channel's log durability asks for,
+     *                 right away if the sender does not wait for the log, may be null
+     */
+    public void sendAll(String channel, List<T> msgs, Runnable onStored) {
+        if (federation != null) {
+            federation.forward(channel, msgs);
+        }
+        publishLocally(channel, msgs, onStored);
+    }
+
+    /**
+     * sends messages forwarded by a peer (see Federation) to the local subscribers only.
+     * a peer can't publish to the server's own destinations
+     */
+    @SuppressWarnings("unchecked")
+    /* package */ void receiveForwarded(String channel, List<String> msgs) {
+        if (channel.startsWith(Federation.LOCAL_PREFIX)) {
+            return;
+        }
+        publishLocally(channel, (List<T>) msgs, null);
+    }
+
+    private void publishLocally(String channel, List<T> msgs, Runnable onStored) {
+        ChannelLog.Durability durability = ChannelLog.durabilityOf(channel);
+        if (onStored != null && (durability == ChannelLog.Durability.NONE || durability == ChannelLog.Durability.ASYNC)) {
+            onStored.run();
+            onStored = null;
+        }
+        Runnable stored = onStored;
+        long sentAt = System.nanoTime();
+        dispatchPool.submit(stripeOf(channel), () -> publish(channel, msgs, stored, sentAt));
+    }
+
+    private ActorThreadPool.Mailbox stripeOf(String channel) {
+        return dispatchStripes[Math.floorMod(channel.hashCode(), dispatchStripes.length)];
+    }
+
+    // runs on the channel's stripe
+    private void publish(String channel, List<T> msgs, Runnable onStored, long sentAt) {
+        // getting the relevant subs for the specific given channel
+        Channel<T> target = channels.get(channel);
+        if (target == null) {
+            // nobody subscribed to it, it only gets a channel if a pattern matches it or it keeps its
+            // messages by a setting of its own. the defaults alone don't make one, or every destination
+            // a client makes up would stay in memory
+            if (!ChannelLog.isLoggedByName(channel) && !RetainedMessages.isRetainedByName(channel)
+                    && patterns.match(channel).isEmpty()) {
+                run(onStored);
+                return;
+            }
+            // the channel keeps the pattern matches cached and owns the log and the retained messages
+            target = channelOf(channel);
+        }
+        if (target.log == null) {
+            // not logged after all, e.g. the log could not be opened, so the sender should not wait for it
+            run(onStored);
+            onStored = null;
+        }
+        Snapshot<T> snapshot = target.subscribers(patterns);
+        ClientSub<T>[] subscribers = snapshot.subscribers;
+        if (subscribers.length == 0 && target.log == null && target.retained == null) {
+            return;
+        }
+        ByteBuffer[] sharedParts = new ByteBuffer[msgs.size()];
+        // the deflated shared parts, null where the body is too small or does not shrink
+        // only deflated if a subscriber of this channel takes it, whatever the other clients accept
+        ByteBuffer[] deflatedParts = snapshot.deflates ? new ByteBuffer[msgs.size()] : null;
+        for (int i = 0; i < sharedParts.length; i++) {
+            String fullMsg = (String) msgs.get(i);
+            String senderUsername = null;
+            String actualBody = fullMsg;
+
+            int splitIndex = fullMsg.indexOf("@@@@@");
+
+            if (splitIndex != -1) {
+                senderUsername = fullMsg.substring(0, splitIndex);
+
+                if (splitIndex + 5 < fullMsg.length()) {
+                    actualBody = fullMsg.substring(splitIndex + 5);
+                }
+                else {
+                    actualBody = "";
+                }
+            }
+
+            // everything after the per-subscriber headers is the same for all subscribers, so encode it once
+            // (and deflate it once for all the clients that accept it)
+            long sequence = ++target.sequence;
+            // a logged message carries its offset, so a client knows where to replay from
+            long offset = target.log != null ? target.log.nextOffset() : -1;
+            byte[] encoded = encodeSharedPart(channel, actualBody, senderUsername, sequence, offset);
+            if (target.log != null) {
+                // the log keeps the order, so the batch is stored once its last message is. if the
+                // batch crossed into a new segment, the log forces the earlier one before it
+                target.log.append(encoded, i == sharedParts.length - 1 ? onStored : null);
+            }
+            sharedParts[i] = ByteBuffer.wrap(encoded);
+            if (deflatedParts != null && actualBody.length() >= COMPRESS_MIN_BYTES) {
+                deflatedParts[i] = encodeDeflatedPart(channel, actualBody, senderUsername, sequence, offset);
+            }
+            if (target.retained != null) {
+                target.retained.add(sharedParts[i]);
+            }
+        }
+        if (subscribers.length == 0) {
+            return;
+        }
+        // read once per message, not by every subscriber that conflates
+        Map<String, String>[] headers = null;
+        if (snapshot.conflates) {
+            headers = newHeaders(sharedParts.length);
+            for (int i = 0; i < sharedParts.length; i++) {
+                headers[i] = headersOf(sharedParts[i]);
+            }
+        }
+        // while earlier messages are still on the lanes these have to follow them there,
+        // or they could reach some subscribers first
+        if (snapshot.lanes != null || target.lanesInFlight.get() > 0) {
+            fanOut(target, snapshot.lanes != null ? snapshot.lanes : splitToLanes(subscribers), sharedParts,
+                    deflatedParts, headers, sentAt);
+        } else {
+            deliver(subscribers, sharedParts, deflatedParts, headers);
+            recordFanOut(sentAt);
+        }
+    }
+
+    // every lane records its own latency, the slowest lane is the latency of the whole channel
+    private void fanOut(Channel<T> channel, ClientSub<T>[][] lanes, ByteBuffer[] sharedParts, ByteBuffer[] deflatedParts,
+            Map<String, String>[] headers, long sentAt) {
+        for (int i = 0; i < lanes.length; i++) {
+            ClientSub<T>[] lane = lanes[i];
+            if (lane.length > 0) {
+                channel.lanesInFlight.incrementAndGet();
+                fanoutPool.submit(fanoutLanes[i], () -> {
+                    try {
+                        deliver(lane, sharedParts, deflatedParts, headers);
+                    } finally {
+                        // even if a send failed, or the channel would never send inline again
+                        channel.lanesInFlight.decrementAndGet();
+                    }
+                    recordFanOut(sentAt);
+                });
+            }
+        }
+    }
+
+    private void deliver(ClientSub<T>[] subscribers, ByteBuffer[] sharedParts, ByteBuffer[] deflatedParts,
+            Map<String, String>[] headers) {
+        for (ClientSub<T> sub : subscribers) {
+            // channel messages may be dropped for a subscriber that does not keep up
+            sendTo(sub, sharedParts, deflatedParts, headers, true);
+        }
+    }
+
+    private static void recordFanOut(long sentAt) {
+        Metrics.FANOUT_LATENCY.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - sentAt));
+    }
+
+    /**
+     * @param deflatedParts the deflated versions of sharedParts, null entries (or a null array) where
+     *                      there is none
+     * @param headers the headersOf every shared part, null if no subscriber conflates
+     */
+    private static <T> void sendTo(ClientSub<T> sub, ByteBuffer[] sharedParts, ByteBuffer[] deflatedParts,
+            Map<String, String>[] headers, boolean droppable) {
+        if (sharedParts.length == 1 || sub.ack != null || sub.conflateOn != null) {
+            // acknowledged and conflated messages are handled one by one
+            for (int i = 0; i < sharedParts.length; i++) {
+                sendTo(sub, sharedParts[i], deflatedParts == null ? null : deflatedParts[i],
+                        headers == null ? null : headers[i], droppable);
+            }
             return;
         }
-        String fullMsg = (String) msg;
-        String senderUsername = null;
-        String actualBody = fullMsg;
+        // the whole batch is queued as one entry and written together. every subscriber gets
+        // a read only view of the shared parts, so no connection can change what the others send
+        ByteBuffer[] parts = new ByteBuffer[sharedParts.length * 2];
+        for (int i = 0; i < sharedParts.length; i++) {
+            ByteBuffer message = choose(sub, sharedParts[i], deflatedParts == null ? null : deflatedParts[i]);
+            parts[2 * i] = encodeSubscriberPart(sub.subscriptionId, MessageIds.next(), false, false);
+            parts[2 * i + 1] = message.asReadOnlyBuffer();
+        }
+        MESSAGES_OUT.add(sharedParts.length);
+        sub.client.handler.sendEncoded(droppable, parts);
+    }
 
-        int splitIndex = fullMsg.indexOf("@@@@@");
+    /**
+     * @param headers the headersOf sharedPart, null to read them here if the subscriber conflates
+     */
+    private static <T> void sendTo(ClientSub<T> sub, ByteBuffer sharedPart, ByteBuffer deflatedPart,
+            Map<String, String> headers, boolean droppable) {
+        if (sub.ack != null) {
+            // the ack window is the flow control of these, they are never dropped. they are kept plain,
+            // what is left unacknowledged may go to a later connection that does not accept deflate
+            sub.ack.offer(sharedPart, sub);
+        } else {
+            ByteBuffer message = choose(sub, sharedPart, deflatedPart);
+            MESSAGES_OUT.increment();
+            ByteBuffer subscriberPart = encodeSubscriberPart(sub.subscriptionId, MessageIds.next(), false, false);
+            String conflationValue = null;
+            if (sub.conflateOn != null) {
+                // looked up in the plain message, the body lines can't be read once deflated
+                conflationValue = (headers != null ? headers : headersOf(sharedPart)).get(sub.conflateOn);
+            }
+            if (conflationValue != null) {
+                sub.client.handler.sendConflated(sub.subscriptionId + ":" + conflationValue, subscriberPart,
+                        message.asReadOnlyBuffer());
+            } else {
+                sub.client.handler.sendEncoded(droppable, subscriberPart, message.asReadOnlyBuffer());
+            }
+        }
+    }
 
-        if (splitIndex != -1) {
-            senderUsername = fullMsg.substring(0, splitIndex);
+    // the deflated message if there is one and the subscriber accepts it
+    private static ByteBuffer choose(ClientSub<?> sub, ByteBuffer sharedPart, ByteBuffer deflatedPart) {
+        return deflatedPart != null && sub.client.deflate ? deflatedPart : sharedPart;
+    }
+
+    /**
+     * reads the "key:value" lines of an encoded message that conflation keys are looked up in: its
+     * headers, and the lines at the top of its body as long as they are "key:value" lines too (the
+     * headers of a game event). the rest of the body is never read
+     * @return the trimmed value of every key, the first one if a key repeats
+     */
+    private static Map<String, String> headersOf(ByteBuffer message) {
+        Map<String, String> headers = new HashMap<>();
+        int end = message.limit();
+        int lineStart = message.position();
+        boolean inBody = false;
+        while (lineStart < end && message.get(lineStart) != '\u0000') {
+            int lineEnd = lineStart;
+            int colon = -1;
+            byte b;
+            while (lineEnd < end && (b = message.get(lineEnd)) != '\n' && b != '\u0000') {
+                if (colon < 0 && b == ':') {
+                    colon = lineEnd;
+                }
+                lineEnd++;
+            }
+            if (lineEnd == lineStart) {
+                // the empty line after the headers, or an empty line ending the body's headers
+                if (inBody) {
+                    break;
+                }
+                inBody = true;
+            } else if (colon < 0) {
+                if (inBody) {
+                    break;
+                }
+            } else {
+                headers.putIfAbsent(string(message, lineStart, colon), string(message, colon + 1, lineEnd).trim());
+            }
+            lineStart = lineEnd + 1;
+        }
+        return headers;
+    }
+
+    private static String string(ByteBuffer message, int from, int to) {
+        byte[] bytes = new byte[to - from];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = message.get(from + i);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * handles an ACK or a NACK
+     * @param accepted true for ACK
+     * @return false if the message is not waiting for an ACK from the client
+     */
+    public boolean ack(int connectionId, long messageId, boolean accepted) {
+        Client<T> client = clients.get(connectionId);
+        if (client == null) {
+            return false;
+        }
+        // a client has only a few subscriptions, asking each of them is cheaper than keeping
+        // a map of every message waiting for an ACK
+        for (ClientSub<T> sub : client.subscriptions) {
+            if (sub.ack != null && (accepted ? sub.ack.ack(messageId, sub) : sub.ack.nack(messageId, sub))) {
+                return true;
+            }
+        }
+        return false;
+    }
 
-            if (splitIndex + 5 < fullMsg.length()) {
-                actualBody = fullMsg.substring(splitIndex + 5);
+    /**
+     * @return true if the message is waiting for an ACK or a NACK from the client
+     */
+    public boolean isWaitingForAck(int connectionId, long messageId) {
+        Client<T> client = clients.get(connectionId);
+        if (client == null) {
+            return false;
+        }
+        for (ClientSub<T> sub : client.subscriptions) {
+            if (sub.ack != null && sub.ack.isInFlight(messageId)) {
+                return true;
             }
-            else {
-                actualBody = "";
+        }
+        return false;
+    }
+
+    /**
+     * stops the dispatch stripes, the fan-out lanes and the federation links, called when the server closes
+     */
+    public void shutdown() {
+        if (statsPublisher != null) {
+            statsPublisher.shutdownNow();
+        }
+        if (federation != null) {
+            federation.close();
+        }
+        dispatchPool.shutdown();
+        fanoutPool.shutdown();
+        logFlusher.close();
+        for (Channel<T> channel : channels.values()) {
+            if (channel.log != null) {
+                channel.log.close();
             }
+            Metrics.unregister(beanName(channel.name));
         }
+    }
 
-        for (ClientSub sub : subscribers) {
-            T messageFrame = createMessageFrame(sub.ClientSubscriptionId, channel, actualBody, senderUsername);
-            send(sub.ClientSubConnectionId, messageFrame);
+    /**
+     * sets whether the client accepts MESSAGE bodies compressed with deflate, negotiated at CONNECT
+     */
+    public void acceptDeflate(int connectionId, boolean deflate) {
+        Client<T> client = clients.get(connectionId);
+        if (client != null && client.deflate != deflate) {
+            client.deflate = deflate;
+            // the snapshots of the client's channels know whether any of their subscribers deflates
+            for (ClientSub<T> sub : client.subscriptions) {
+                if (sub.channel == null) {
+                    patternChanged(sub.channelName);
+                } else {
+                    sub.channel.invalidate();
+                }
+            }
         }
     }
 
     public void disconnect(int connectionId) {
         // removing the client from connections map
-        connectedHandlers.remove(connectionId);
-
-        List<String> channels = clientActiveSubscriptions.remove(connectionId);
-        if (channels != null) {
-            // loop over all the channels and disconect the specific connectionId
-            for (String channel : channels) {
-                // removeSubscriberFromchannel(channel, connectionId);
-                CopyOnWriteArrayList<ClientSub> subscribers = channelSubscribers.get(channel);
-                if (subscribers != null) {
-                    // remove the subscriber if we find him registered from the channel
-                    subscribers.removeIf(sub -> sub.ClientSubConnectionId == connectionId);
-                }
+        Client<T> client = clients.remove(connectionId);
+        if (client != null) {
+            // the client knows its own subscriptions, so we only visit the channels it was in
+            for (ClientSub<T> sub : client.subscriptions) {
+                removeSubscriber(sub);
             }
+            client.subscriptions.clear();
         }
     }
 
     public void connect(int connectionId, ConnectionHandler<T> handler) {
         // adding connections + handler to the relevant map
-        connectedHandlers.put(connectionId, handler);
+        clients.put(connectionId, new Client<>(connectionId, handler));
     }
 
     public void subscribe(String channel, int connectionId, int subscriptionId) {
-        // creating new list for a channel if doesn't exist already
-        channelSubscribers.putIfAbsent(channel, new CopyOnWriteArrayList<>());
-        CopyOnWriteArrayList<ClientSub> subscribers = channelSubscribers.get(channel);
-        // checking if the client is already subscribed to the channel, if so return
-        for (ClientSub sub : subscribers) {
-            if (sub.ClientSubConnectionId == connectionId && sub.ClientSubscriptionId == subscriptionId) {
-                return;
+        subscribe(channel, connectionId, subscriptionId, null, null, null, null);
+    }
+
+    /**
+     * subscribes the connection to a channel or to a wildcard pattern. as STOMP 1.2 asks, a
+     * subscription id is unique within its connection and not only within the channel: if the
+     * connection already has a subscription with this id, even to another channel, nothing changes
+     * and onSubscribed just runs. the protocol rejects such a SUBSCRIBE before it gets here anyway.
+     * @param replayFrom where to start replaying the channel's log from (see ChannelLog.isPosition),
+     *                   null to only get new messages. ignored if the channel is not logged
+     * @param ack the ack window of an ack:client or ack:client-individual subscription, null for ack:auto
+     * @param conflateOn a header key, or a key of the "key:value" lines the body starts with. messages with
+     *                   the same value for it replace each other while waiting to be written to the client.
+     *                   null to get every message
+     * @param onSubscribed run once the subscription is in place, before any old message is sent
+     *                     to it, may be null
+     */
+    public void subscribe(String channel, int connectionId, int subscriptionId, String replayFrom, AckWindow ack,
+            String conflateOn, Runnable onSubscribed) {
+        Client<T> client = clients.get(connectionId);
+        if (client == null) {
+            run(onSubscribed);
+            return;
+        }
+        if (TopicTrie.isPattern(channel)) {
+            ClientSub<T> sub = new ClientSub<>(client, subscriptionId, channel, null, ack, conflateOn);
+            if (client.subscriptions.putIfAbsent(subscriptionId, sub) == null) {
+                // in place before the receipt, so everything published after it matches
+                patterns.add(channel, sub);
+                patternChanged(channel);
+                if (federation != null) {
+                    federation.subscribed(channel);
+                }
+                run(onSubscribed);
+                redeliverUnacked(sub);
+            } else {
+                run(onSubscribed);
+            }
+            return;
+        }
+        // creating the channel if doesn't exist already
+        Channel<T> target = joinChannel(channel);
+        ClientSub<T> sub = new ClientSub<>(client, subscriptionId, channel, target, ack, conflateOn);
+        // if the client already has this subscription there is nothing to do
+        if (client.subscriptions.putIfAbsent(subscriptionId, sub) != null) {
+            leaveChannel(target);
+            run(onSubscribed);
+            return;
+        }
+        if (federation != null) {
+            federation.subscribed(channel);
+        }
+        boolean replay = replayFrom != null && target.log != null;
+        if (replay || target.retained != null || sub.ack != null) {
+            // the log and the retained messages are only touched by the channel's stripe, and no
+            // message can be published between sending the old ones and joining the channel.
+            // the same goes for the messages an earlier ack subscription left unacknowledged
+            dispatchPool.submit(stripeOf(channel), () -> {
+                run(onSubscribed);
+                redeliverUnacked(sub);
+                if (replay) {
+                    // the replayed messages are not droppable, the client asked for every one of them
+                    target.log.replay(target.log.offsetOf(replayFrom), message -> sendTo(sub, message, null, null, false));
+                } else if (target.retained != null) {
+                    target.retained.forEach(message -> sendTo(sub, message, null, null, true));
+                }
+                target.add(sub);
+                if (sub.removed) {
+                    // unsubscribed while waiting for the stripe
+                    target.remove(sub);
+                }
+            });
+        } else {
+            // in the channel before the receipt, so everything published after it reaches the client
+            target.add(sub);
+            run(onSubscribed);
+        }
+    }
+
+    // the subscription may have ended while this waited for the stripe, what it could not take is kept again
+    private void redeliverUnacked(ClientSub<T> sub) {
+        if (sub.ack == null || sub.removed) {
+            return;
+        }
+        Unacked left = unacked.remove(unackedKey(sub));
+        if (left != null && !left.expired(System.currentTimeMillis()) && !sub.ack.redeliver(left.messages, sub)) {
+            keepUnacked(sub, left.messages);
+        }
+    }
+
+    // keeps what an ended subscription left unacknowledged, within the KEEP_UNACKED limits
+    private void keepUnacked(ClientSub<T> sub, List<ByteBuffer> left) {
+        long now = System.currentTimeMillis();
+        if (now >= nextUnackedSweep) {
+            nextUnackedSweep = now + KEEP_UNACKED_MILLIS / 10;
+            unacked.values().removeIf(entry -> entry.expired(now));
+        }
+        String key = unackedKey(sub);
+        if (unacked.size() >= KEEP_UNACKED_ENTRIES && !unacked.containsKey(key)) {
+            System.err.println("dropping " + left.size() + " unacknowledged messages of " + key.replace('\n', ' ')
+                    + ", too many subscriptions have unacknowledged messages kept");
+            return;
+        }
+        unacked.merge(key, new Unacked(left, now), (older, newer) -> older.expired(now) ? newer : older.append(newer));
+    }
+
+    private static String unackedKey(ClientSub<?> sub) {
+        return sub.ack.owner() + '\n' + sub.channelName;
+    }
+
+    private static void run(Runnable callback) {
+        if (callback != null) {
+            callback.run();
+        }
+    }
+
+    // the channel of the destination, made if there is none. its log is opened outside of the map,
+    // so no file is touched while holding the map's lock. if two threads make the channel at the
+    // same time, the one that loses closes its log again
+    private Channel<T> channelOf(String name) {
+        Channel<T> channel = channels.get(name);
+        if (channel != null) {
+            return channel;
+        }
+        ChannelLog log = null;
+        try {
+            log = ChannelLog.open(name, logFlusher);
+        } catch (IOException ex) {
+            // the channel works without its log
+            ex.printStackTrace();
+        }
+        Channel<T> created = new Channel<>(name, log, RetainedMessages.forDestination(name));
+        // indexed first, so a pattern that changes once the channel can be found also finds it here
+        channelsByLevel.add(name, created);
+        channel = channels.putIfAbsent(name, created);
+        if (channel != null) {
+            channelsByLevel.remove(name, created);
+            if (log != null) {
+                log.close();
+            }
+            return channel;
+        }
+        Metrics.register(beanName(name), new DestinationBean(created), DestinationMXBean.class);
+        return created;
+    }
+
+    // the channel of a new subscription, kept until the subscription leaves it again
+    private Channel<T> joinChannel(String name) {
+        while (true) {
+            Channel<T> channel = channelOf(name);
+            if (channel.pin()) {
+                return channel;
             }
+            // dropped just now, it is out of the map already
+        }
+    }
+
+    private void leaveChannel(Channel<T> channel) {
+        if (channel.unpin()) {
+            dropIfIdle(channel);
         }
-        // adding the new sub for the channel's subs list
-        subscribers.add(new ClientSub(connectionId, subscriptionId));
-        // adding new list of empty subsriptions for client
-        clientActiveSubscriptions.putIfAbsent(connectionId, new CopyOnWriteArrayList<>());
-        // adding the channel for the client's subsricbe list
+    }
+
+    // drops a channel nobody needs any more: no subscription and no pattern is in it, and it keeps no
+    // messages. publishing to it again makes a new one, with its sequence starting over
+    private void dropIfIdle(Channel<T> channel) {
+        if (channel.log != null || channel.retained != null || !patterns.match(channel.name).isEmpty()) {
+            return;
+        }
+        if (channel.drop()) {
+            channels.remove(channel.name, channel);
+            channelsByLevel.remove(channel.name, channel);
+            Metrics.unregister(beanName(channel.name));
+        }
+    }
+
+    private static String beanName(String channel) {
+        return "bgu.spl.net:type=Destination,name=" + ObjectName.quote(channel);
+    }
 
-        clientActiveSubscriptions.get(connectionId).addIfAbsent(channel);
+    // runs on statsPublisher
+    @SuppressWarnings("unchecked")
+    private void publishStats() {
+        StringBuilder stats = new StringBuilder(Metrics.report());
+        // sorted, so the lines of a destination are always in the same place
+        TreeMap<String, Channel<T>> current = new TreeMap<>(channels);
+        // dropped channels are forgotten, one made again starts over
+        lastPublished.keySet().retainAll(current.keySet());
+        for (Channel<T> channel : current.values()) {
+            long published = channel.sequence;
+            Long last = lastPublished.put(channel.name, published);
+            double rate = (double) (published - (last == null ? 0 : last)) / STATS_PERIOD_SECONDS;
+            stats.append("destination.").append(channel.name).append(".published:").append(published).append('\n')
+                    .append("destination.").append(channel.name).append(".rate:").append(rate).append('\n')
+                    .append("destination.").append(channel.name).append(".subscribers:")
+                    .append(channel.subscribers(patterns).subscribers.length).append('\n');
+        }
+        send(STATS_DESTINATION, (T) ("$SYS@@@@@" + stats));
     }
 
     public void unsubscribe(String channel, int connectionId, int subscriptionId) {
-        // getting the sub list of the channel
-        CopyOnWriteArrayList<ClientSub> subscribers = channelSubscribers.get(channel);
-        if (subscribers != null) {
-            // creating flag that indicates that we the user we want to remove exists
-            boolean removed = subscribers.removeIf(sub -> sub.ClientSubConnectionId == connectionId && sub.ClientSubscriptionId == subscriptionId)
-;
-            // if the client was successfully removed: 
-                if (removed) {
-                // remove from the client's channels list the specific channel that we removed
-                CopyOnWriteArrayList<String> userSubs = clientActiveSubscriptions.get(connectionId);
-                if (userSubs != null) {
-                    userSubs.remove(channel);
+        Client<T> client = clients.get(connectionId);
+        if (client == null) {
+            return;
+        }
+        ClientSub<T> sub = client.subscriptions.get(subscriptionId);
+        // removing only if this subscription is really to the given channel
+        if (sub != null && sub.channelName.equals(channel) && client.subscriptions.remove(subscriptionId, sub)) {
+            removeSubscriber(sub);
+        }
+    }
+
+    private void removeSubscriber(ClientSub<T> sub) {
+        sub.removed = true;
+        if (federation != null) {
+            federation.unsubscribed(sub.channelName);
+        }
+        if (sub.channel == null) {
+            patterns.remove(sub.channelName, sub);
+            patternChanged(sub.channelName);
+        } else {
+            sub.channel.remove(sub);
+            leaveChannel(sub.channel);
+        }
+        if (sub.ack != null) {
+            List<ByteBuffer> left = sub.ack.close();
+            if (!left.isEmpty()) {
+                keepUnacked(sub, left);
+            }
+        }
+    }
+
+    // a pattern subscription was added or removed, only the channels it matches have to match again.
+    // a channel made after the pattern changed matches it anyway, it starts dirty. the channels
+    // that were only there for the pattern go with it
+    private void patternChanged(String pattern) {
+        for (Channel<T> channel : channelsByLevel.matchedBy(pattern)) {
+            channel.invalidate();
+            if (!channel.pinned()) {
+                dropIfIdle(channel);
+            }
+        }
+    }
+
+    // "MESSAGE\nsubscription:<id>\nmessage-id:<id>\n" - the headers that differ between subscribers,
+    // with "ack:<message id>\n" for the messages that need an ACK and "redelivered:true\n" for the ones sent again
+    private static ByteBuffer encodeSubscriberPart(int subscriptionId, long messageId, boolean ack, boolean redelivered) {
+        byte[] bytes = new byte[SUBSCRIBER_PART_MAX_SIZE];
+        int pos = put(bytes, 0, MESSAGE_SUBSCRIPTION_HEADER);
+        pos = putNumber(bytes, pos, subscriptionId);
+        pos = put(bytes, pos, MESSAGE_ID_HEADER);
+        pos = putNumber(bytes, pos, messageId);
+        if (ack) {
+            pos = put(bytes, pos, ACK_HEADER);
+            pos = putNumber(bytes, pos, messageId);
+        }
+        if (redelivered) {
+            pos = put(bytes, pos, REDELIVERED_HEADER);
+        }
+        bytes[pos++] = '\n';
+        return ByteBuffer.wrap(bytes, 0, pos);
+    }
+
+    // the rest of the headers, the body and the null char. offset is only added if not negative,
+    // content-length only if the body has null chars of its own
+    private static byte[] encodeSharedPart(String destination, String body, String user, long sequence, long offset) {
+        String offsetHeader = offset < 0 ? "" : OFFSET_HEADER + offset + "\n";
+        String lengthHeader = body.indexOf('\u0000') < 0 ? ""
+                : "content-length:" + body.getBytes(StandardCharsets.UTF_8).length + "\n";
+        String part = "destination:" + destination + "\n" + SEQUENCE_HEADER + sequence + "\n" + offsetHeader
+                + lengthHeader + "user:" + user + "\n\n" + body + '\u0000';
+        return part.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * like encodeSharedPart, with the body deflated and content-encoding and content-length headers
+     * @return null if the body does not get smaller
+     */
+    private static ByteBuffer encodeDeflatedPart(String destination, String body, String user, long sequence, long offset) {
+        byte[] raw = body.getBytes(StandardCharsets.UTF_8);
+        Deflater deflater = DEFLATERS.get();
+        deflater.reset();
+        deflater.setInput(raw);
+        deflater.finish();
+        // anything that does not fit here is not worth sending deflated
+        byte[] deflated = new byte[raw.length];
+        int length = 0;
+        while (!deflater.finished() && length < deflated.length) {
+            length += deflater.deflate(deflated, length, deflated.length - length);
+        }
+        if (!deflater.finished()) {
+            return null;
+        }
+        String offsetHeader = offset < 0 ? "" : OFFSET_HEADER + offset + "\n";
+        byte[] headers = ("destination:" + destination + "\n" + SEQUENCE_HEADER + sequence + "\n" + offsetHeader
+                + "user:" + user + "\n" + DEFLATE_HEADERS + length + "\n\n").getBytes(StandardCharsets.UTF_8);
+        byte[] part = new byte[headers.length + length + 1];
+        int pos = put(part, 0, headers);
+        System.arraycopy(deflated, 0, part, pos, length);
+        part[pos + length] = '\u0000';
+        return ByteBuffer.wrap(part);
+    }
+
+    private static int put(byte[] dst, int pos, byte[] src) {
+        System.arraycopy(src, 0, dst, pos, src.length);
+        return pos + src.length;
+    }
+
+    // writes the decimal digits of value without going through a String
+    private static int putNumber(byte[] dst, int pos, long value) {
+        if (value < 0) {
+            dst[pos++] = '-';
+            value = -value;
+        }
+        int start = pos;
+        do {
+            dst[pos++] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value != 0);
+        // the digits came out backwards
+        for (int i = start, j = pos - 1; i < j; i++, j--) {
+            byte tmp = dst[i];
+            dst[i] = dst[j];
+            dst[j] = tmp;
+        }
+        return pos;
+    }
+
+    // groups the subscribers by the lane of their connection
+    private static <T> ClientSub<T>[][] splitToLanes(ClientSub<T>[] subscribers) {
+        int[] sizes = new int[FANOUT_LANES];
+        for (ClientSub<T> sub : subscribers) {
+            sizes[sub.client.lane]++;
+        }
+        ClientSub<T>[][] lanes = newLanes(FANOUT_LANES);
+        for (int i = 0; i < lanes.length; i++) {
+            // an array of the same type and of the lane's size, it is filled below
+            lanes[i] = Arrays.copyOf(subscribers, sizes[i]);
+            sizes[i] = 0;
+        }
+        for (ClientSub<T> sub : subscribers) {
+            int lane = sub.client.lane;
+            lanes[lane][sizes[lane]++] = sub;
+        }
+        return lanes;
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static <T> ClientSub<T>[][] newLanes(int length) {
+        return (ClientSub<T>[][]) new ClientSub[length][];
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static Map<String, String>[] newHeaders(int length) {
+        return (Map<String, String>[]) new Map[length];
+    }
+
+    private static class Client<T> {
+        final ConnectionHandler<T> handler;
+        // the fan-out lane of all the client's subscriptions
+        final int lane;
+        // accepts deflated bodies
+        volatile boolean deflate = false;
+        // the client's subscriptions by their subscription id
+        final IntMap<ClientSub<T>> subscriptions = new IntMap<>();
+
+        Client(int connectionId, ConnectionHandler<T> handler) {
+            this.handler = handler;
+            this.lane = Math.floorMod(connectionId, FANOUT_LANES);
+        }
+    }
+
+    private static class ClientSub<T> implements AckWindow.Delivery {
+        final Client<T> client;
+        final int subscriptionId;
+        final String channelName;
+        // null for a wildcard subscription
+        final Channel<T> channel;
+        // null for ack:auto
+        final AckWindow ack;
+        // the key of the conflate header, null if the subscription does not conflate
+        final String conflateOn;
+        volatile boolean removed = false;
+
+        ClientSub(Client<T> client, int subscriptionId, String channelName, Channel<T> channel, AckWindow ack,
+                String conflateOn) {
+            this.client = client;
+            this.subscriptionId = subscriptionId;
+            this.channelName = channelName;
+            this.channel = channel;
+            this.ack = ack;
+            this.conflateOn = conflateOn;
+        }
+
+        @Override
+        public void deliver(long messageId, ByteBuffer message, boolean redelivered) {
+            MESSAGES_OUT.increment();
+            client.handler.sendEncoded(false, encodeSubscriberPart(subscriptionId, messageId, true, redelivered),
+                    message.asReadOnlyBuffer());
+        }
+    }
+
+    // the messages kept for an owner and destination, the newest KEEP_UNACKED of them
+    private static class Unacked {
+        final List<ByteBuffer> messages;
+        final long keptAt;
+
+        Unacked(List<ByteBuffer> messages, long keptAt) {
+            this.messages = messages.size() > KEEP_UNACKED
+                    ? messages.subList(messages.size() - KEEP_UNACKED, messages.size()) : messages;
+            this.keptAt = keptAt;
+        }
+
+        boolean expired(long now) {
+            return now - keptAt >= KEEP_UNACKED_MILLIS;
+        }
+
+        Unacked append(Unacked newer) {
+            List<ByteBuffer> all = new ArrayList<>(messages.size() + newer.messages.size());
+            all.addAll(messages);
+            all.addAll(newer.messages);
+            return new Unacked(all, newer.keptAt);
+        }
+    }
+
+    /**
+     * The subscribers of one channel. Adding and removing a subscriber is O(1),
+     * sending iterates an array snapshot that is rebuilt at most once per send,
+     * so a storm of subscribes before kickoff costs a single copy. The snapshot
+     * also holds the wildcard subscriptions matching the channel, and is rebuilt
+     * when a pattern matching the channel comes or goes, and for a big channel
+     * it is also split by fan-out lane.
+     */
+    private static class Channel<T> {
+        @SuppressWarnings("rawtypes")
+        private static final ClientSub[] EMPTY = new ClientSub[0];
+
+        private final String name;
+        // null if the channel is not logged
+        private final ChannelLog log;
+        // null if the channel does not keep its last messages
+        private final RetainedMessages retained;
+        private final Set<ClientSub<T>> members = ConcurrentHashMap.newKeySet();
+        private volatile Snapshot<T> snapshot = new Snapshot<>(emptySnapshot());
+        // messages of this channel submitted to the fan-out lanes and not delivered yet
+        private final AtomicInteger lanesInFlight = new AtomicInteger(0);
+        // number of the last message published to the channel, only written by the channel's stripe
+        // and read by the metrics
+        private volatile long sequence = 0;
+        // the members, the patterns matching the channel or what a member accepts changed since the
+        // snapshot was taken. a new channel has not matched the patterns yet
+        private volatile boolean dirty = true;
+        // the subscriptions to the channel, joined or still joining. guarded by the channel's lock
+        private int pins = 0;
+        // out of the channels map, it can't be joined any more. guarded by the channel's lock
+        private boolean dropped = false;
+
+        Channel(String name, ChannelLog log, RetainedMessages retained) {
+            this.name = name;
+            this.log = log;
+            this.retained = retained;
+        }
+
+        void add(ClientSub<T> sub) {
+            members.add(sub);
+            dirty = true;
+        }
+
+        void remove(ClientSub<T> sub) {
+            if (members.remove(sub)) {
+                dirty = true;
+            }
+        }
+
+        // a pattern matching the channel, or what one of its subscribers accepts, changed
+        void invalidate() {
+            dirty = true;
+        }
+
+        /**
+         * @return false if the channel was dropped and can't be joined
+         */
+        synchronized boolean pin() {
+            if (dropped) {
+                return false;
+            }
+            pins++;
+            return true;
+        }
+
+        /**
+         * @return true if that was the last subscription
+         */
+        synchronized boolean unpin() {
+            return --pins == 0;
+        }
+
+        synchronized boolean pinned() {
+            return pins > 0;
+        }
+
+        /**
+         * @return false if the channel has subscriptions, or was dropped already
+         */
+        synchronized boolean drop() {
+            if (pins > 0 || dropped) {
+                return false;
+            }
+            dropped = true;
+            return true;
+        }
+
+        Snapshot<T> subscribers(TopicTrie<ClientSub<T>> patterns) {
+            if (dirty) {
+                synchronized (this) {
+                    if (dirty) {
+                        // cleared before copying, so a change made during the copy marks it dirty again
+                        dirty = false;
+                        List<ClientSub<T>> matches = patterns.match(name);
+                        if (matches.isEmpty()) {
+                            snapshot = new Snapshot<>(members.toArray(emptySnapshot()));
+                        } else {
+                            matches.addAll(members);
+                            snapshot = new Snapshot<>(matches.toArray(emptySnapshot()));
+                        }
+                    }
                 }
             }
+            return snapshot;
+        }
+
+        @SuppressWarnings("unchecked")
+        private static <T> ClientSub<T>[] emptySnapshot() {
+            return (ClientSub<T>[]) EMPTY;
         }
     }
 
-    private T createMessageFrame(int subscriptionId, String destination, String body, String user) {
-        // creating new MESSAGE frame
-        StompFrame frame = new StompFrame("MESSAGE");
-        // expanding the frame with the relevant headers
-        frame.addHeader("subscription", String.valueOf(subscriptionId));
-        frame.addHeader("message-id", String.valueOf(messageIdCounter.incrementAndGet()));
-        frame.addHeader("destination", destination);
-        frame.addHeader("user", user);
-        
-        frame.setBody(body);
-        // returning the frame as T type
-        return (T) frame.toString();
+    /**
+     * the JMX view of a destination
+     */
+    public interface DestinationMXBean {
+        long getPublished();
+
+        int getSubscribers();
     }
 
-    private static class ClientSub {
-        final int ClientSubConnectionId;
-        final int ClientSubscriptionId;
+    private class DestinationBean implements DestinationMXBean {
+        private final Channel<T> channel;
+
+        DestinationBean(Channel<T> channel) {
+            this.channel = channel;
+        }
 
-        ClientSub(int ClientSubConnectionId, int ClientSubscriptionId) {
-            this.ClientSubConnectionId = ClientSubConnectionId;
-            this.ClientSubscriptionId = ClientSubscriptionId;
+        @Override
+        public long getPublished() {
+            return channel.sequence;
+        }
+
+        @Override
+        public int getSubscribers() {
+            return channel.subscribers(patterns).subscribers.length;
+        }
+    }
+
+    private static class Snapshot<T> {
+        final ClientSub<T>[] subscribers;
+        // the same subscribers split by fan-out lane, null if the channel is small enough to send inline
+        final ClientSub<T>[][] lanes;
+        // some of the subscribers conflate, the headers of every message have to be read
+        final boolean conflates;
+        // some of the subscribers accept deflated bodies, the big messages are deflated for them
+        final boolean deflates;
+
+        Snapshot(ClientSub<T>[] subscribers) {
+            this.subscribers = subscribers;
+            this.lanes = subscribers.length >= PARALLEL_FANOUT_THRESHOLD ? splitToLanes(subscribers) : null;
+            boolean conflates = false;
+            boolean deflates = false;
+            for (ClientSub<T> sub : subscribers) {
+                conflates |= sub.conflateOn != null;
+                // ack subscriptions are always sent plain
+                deflates |= sub.client.deflate && sub.ack == null;
+            }
+            this.conflates = conflates;
+            this.deflates = deflates;
         }
     }
-}
\ No newline at end of file
+}
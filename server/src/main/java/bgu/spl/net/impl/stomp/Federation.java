@@ -0,0 +1,593 @@
+package bgu.spl.net.impl.stomp;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.ObjectName;
+
+import bgu.spl.net.srv.Metrics;
+
+/**
+ * Links server instances together, so a message sent to any of them reaches
+ * the subscribers of all of them.
+ * <p>
+ * Every instance listens for its peers on stomp.federation.port and dials
+ * the ones listed in stomp.federation.peers ("host:port,host:port"), again
+ * every stomp.federation.retryMillis (default 1000) while a peer is not
+ * linked. stomp.federation.bind picks the address listened on, all of them
+ * by default. Peers talk STOMP frames of their own: PEER names the node
+ * (stomp.federation.nodeId, random by default) and carries
+ * stomp.federation.secret, a link whose peer does not know the same secret is
+ * closed. INTEREST and UNINTEREST tell
+ * a peer that a destination or a wildcard pattern got its first local
+ * subscriber or lost its last one, and FORWARD carries a message to a peer
+ * with interest in its destination. A message sent before the interest
+ * reaches a peer is not forwarded to it, and neither is one to a destination
+ * a peer asked for after stomp.federation.maxInterest (default 10000) others.
+ * <p>
+ * A forwarded message is only delivered to the local subscribers of the
+ * peer and never forwarded again, and a node drops forwards of its own
+ * origin, so messages can't loop. It also means the instances have to form
+ * a full mesh, every one linked to every other. When two nodes dial each
+ * other, both keep the link dialed by the node with the smaller id.
+ * <p>
+ * Every link has a writer thread that writes all the frames queued for the
+ * peer with a single flush, and a reader that hands the messages of every
+ * read to the local destinations as batches. Forwards are dropped while more
+ * than stomp.federation.maxQueuedBytes (default 64m) wait for a peer.
+ */
+public class Federation {
+
+    private static final String PEER = "PEER";
+    private static final String INTEREST = "INTEREST";
+    private static final String UNINTEREST = "UNINTEREST";
+    private static final String FORWARD = "FORWARD";
+    // the server's own destinations, every node publishes its own
+    /* package */ static final String LOCAL_PREFIX = "/$SYS/";
+    private static final byte[] DESTINATION_HEADER = "\ndestination:".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] CONTENT_LENGTH_HEADER = "\ncontent-length:".getBytes(StandardCharsets.UTF_8);
+    private static final int READ_CHUNK_SIZE = 1 << 13; // 8k
+    private static final int WRITE_BUFFER_SIZE = 1 << 16; // 64k
+    // the most frames written with one flush
+    private static final int MAX_BATCH_FRAMES = 1024;
+    private static final int CONNECT_TIMEOUT_MILLIS = 5000;
+
+    private final ConnectionsImpl<?> connections;
+    private final String nodeId;
+    // empty if the peers are not asked for one
+    private final byte[] secret;
+    private final long maxQueuedBytes;
+    // the most destinations and patterns a peer may have interest in
+    private final int maxInterest;
+    // "FORWARD\norigin:<node id>", the start of every forward
+    private final byte[] forwardOrigin;
+    private final List<InetSocketAddress> peers;
+    // null if the node only dials its peers
+    private final ServerSocket listener;
+    private final ScheduledExecutorService dialer;
+    // the number of local subscriptions to every destination and pattern, guarded by this
+    private final Map<String, Integer> localInterest = new HashMap<>();
+    // the links by the node id of their peer, once it said who it is
+    private final ConcurrentHashMap<String, PeerLink> links = new ConcurrentHashMap<>();
+    // the last link dialed to every configured peer, and the node it turned out to be
+    private final ConcurrentHashMap<InetSocketAddress, PeerLink> dialed = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<InetSocketAddress, String> nodeOf = new ConcurrentHashMap<>();
+    private final LongAdder forwarded = new LongAdder();
+    private final LongAdder received = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final String beanName;
+    private volatile boolean closed = false;
+
+    private Federation(ConnectionsImpl<?> connections, String nodeId, String secret, InetAddress bindAddress, int port,
+            List<InetSocketAddress> peers, long retryMillis, long maxQueuedBytes, int maxInterest) throws IOException {
+        this.connections = connections;
+        this.nodeId = nodeId;
+        this.secret = secret.getBytes(StandardCharsets.UTF_8);
+        this.maxQueuedBytes = maxQueuedBytes;
+        this.maxInterest = maxInterest;
+        this.forwardOrigin = (FORWARD + "\norigin:" + nodeId).getBytes(StandardCharsets.UTF_8);
+        this.peers = peers;
+        if (port > 0) {
+            listener = new ServerSocket(port, 0, bindAddress);
+            if (secret.isEmpty()) {
+                System.err.println("Federation listens on " + listener.getLocalSocketAddress()
+                        + " without stomp.federation.secret, anyone who reaches it can link");
+            }
+            Thread acceptor = new Thread(this::acceptPeers, "federation-listener");
+            acceptor.setDaemon(true);
+            acceptor.start();
+        } else {
+            listener = null;
+        }
+        dialer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "federation-dialer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        dialer.scheduleWithFixedDelay(this::dialPeers, 0, retryMillis, TimeUnit.MILLISECONDS);
+        // by node, so nodes in one process do not clash
+        beanName = "bgu.spl.net:type=Federation,node=" + ObjectName.quote(nodeId);
+        Metrics.register(beanName, new FederationBean(), FederationMXBean.class);
+    }
+
+    /**
+     * @return the federation set by the stomp.federation.* system properties, null if
+     *         neither a port nor peers are set or the port can't be listened on
+     */
+    public static Federation fromSystemProperties(ConnectionsImpl<?> connections) {
+        int port = Integer.getInteger("stomp.federation.port", 0);
+        String peers = System.getProperty("stomp.federation.peers", "").trim();
+        if (port <= 0 && peers.isEmpty()) {
+            return null;
+        }
+        List<InetSocketAddress> addresses = new ArrayList<>();
+        for (String peer : peers.split(",")) {
+            peer = peer.trim();
+            int colon = peer.lastIndexOf(':');
+            if (colon > 0) {
+                // resolved on every dial, the peer may move
+                addresses.add(InetSocketAddress.createUnresolved(peer.substring(0, colon),
+                        Integer.parseInt(peer.substring(colon + 1))));
+            } else if (!peer.isEmpty()) {
+                System.out.println("Ignoring federation peer " + peer + ", expected host:port");
+            }
+        }
+        String bind = System.getProperty("stomp.federation.bind", "").trim();
+        try {
+            return new Federation(connections,
+                    System.getProperty("stomp.federation.nodeId", UUID.randomUUID().toString()),
+                    System.getProperty("stomp.federation.secret", ""),
+                    bind.isEmpty() ? null : InetAddress.getByName(bind),
+                    port, addresses,
+                    Long.getLong("stomp.federation.retryMillis", 1000),
+                    Long.getLong("stomp.federation.maxQueuedBytes", 64L << 20),
+                    Integer.getInteger("stomp.federation.maxInterest", 10000));
+        } catch (IOException ex) {
+            // the server works without its peers
+            ex.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * counts a new local subscription, the peers are told about the first one of a destination
+     * @param destination a destination or a wildcard pattern
+     */
+    /* package */ synchronized void subscribed(String destination) {
+        if (destination.startsWith(LOCAL_PREFIX)) {
+            return;
+        }
+        if (localInterest.merge(destination, 1, Integer::sum) == 1) {
+            byte[] frame = encodeInterest(INTEREST, destination);
+            for (PeerLink link : links.values()) {
+                link.queue(frame, false);
+            }
+        }
+    }
+
+    /**
+     * counts a local subscription that ended, the peers are told when it was the last one of a destination
+     */
+    /* package */ synchronized void unsubscribed(String destination) {
+        Integer count = localInterest.get(destination);
+        if (count == null) {
+            return;
+        }
+        if (count > 1) {
+            localInterest.put(destination, count - 1);
+            return;
+        }
+        localInterest.remove(destination);
+        byte[] frame = encodeInterest(UNINTEREST, destination);
+        for (PeerLink link : links.values()) {
+            link.queue(frame, false);
+        }
+    }
+
+    /**
+     * queues messages sent by local clients for every peer with interest in the destination,
+     * they are encoded once for all of them
+     */
+    /* package */ void forward(String destination, List<?> msgs) {
+        if (links.isEmpty() || destination.startsWith(LOCAL_PREFIX)) {
+            return;
+        }
+        byte[][] frames = null;
+        for (PeerLink link : links.values()) {
+            if (!link.interestedIn(destination)) {
+                continue;
+            }
+            if (frames == null) {
+                frames = new byte[msgs.size()][];
+                byte[] encodedDestination = destination.getBytes(StandardCharsets.UTF_8);
+                for (int i = 0; i < frames.length; i++) {
+                    frames[i] = encodeForward(encodedDestination, (String) msgs.get(i));
+                }
+            }
+            for (byte[] frame : frames) {
+                if (link.queue(frame, true)) {
+                    forwarded.increment();
+                } else {
+                    dropped.increment();
+                }
+            }
+        }
+    }
+
+    /**
+     * closes every link and stops listening, called when the server closes
+     */
+    public void close() {
+        closed = true;
+        dialer.shutdownNow();
+        if (listener != null) {
+            try {
+                listener.close();
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            }
+        }
+        for (PeerLink link : links.values()) {
+            link.close();
+        }
+        for (PeerLink link : dialed.values()) {
+            link.close();
+        }
+        Metrics.unregister(beanName);
+    }
+
+    // runs on the listener thread
+    private void acceptPeers() {
+        while (!closed) {
+            try {
+                startLink(listener.accept(), null);
+            } catch (IOException ex) {
+                if (!closed) {
+                    ex.printStackTrace();
+                }
+            }
+        }
+    }
+
+    // runs on the dialer, for every peer that is not linked
+    private void dialPeers() {
+        for (InetSocketAddress address : peers) {
+            PeerLink link = dialed.get(address);
+            String node = nodeOf.get(address);
+            // the peer may have dialed us first, then that link is the one we keep
+            if ((link != null && link.isOpen()) || (node != null && links.containsKey(node))) {
+                continue;
+            }
+            Socket socket = new Socket();
+            try {
+                socket.connect(new InetSocketAddress(address.getHostString(), address.getPort()), CONNECT_TIMEOUT_MILLIS);
+                dialed.put(address, startLink(socket, address));
+            } catch (IOException ex) {
+                // the peer is not up yet, it is dialed again on the next round
+                try {
+                    socket.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    private PeerLink startLink(Socket socket, InetSocketAddress address) throws IOException {
+        socket.setTcpNoDelay(true);
+        PeerLink link = new PeerLink(socket, address);
+        link.start();
+        return link;
+    }
+
+    // the peer said who it is, the link is used from now on unless it is one too many
+    private synchronized void register(PeerLink link, String node, String peerSecret) {
+        if (peerSecret == null || !MessageDigest.isEqual(secret, peerSecret.getBytes(StandardCharsets.UTF_8))) {
+            System.err.println("Closing federation link " + link.socket.getRemoteSocketAddress() + ", wrong secret");
+            link.close();
+            return;
+        }
+        if (closed || node == null || node.equals(nodeId)) {
+            // a node listed as its own peer
+            link.close();
+            return;
+        }
+        if (link.address != null) {
+            nodeOf.put(link.address, node);
+        }
+        PeerLink existing = links.get(node);
+        if (existing != null) {
+            // both nodes keep the link dialed by the one with the smaller id
+            boolean keep = (link.address != null) == (nodeId.compareTo(node) < 0);
+            if (!keep) {
+                link.close();
+                return;
+            }
+            existing.close();
+        }
+        link.peerNode = node;
+        links.put(node, link);
+        // the peer learns the local interest before anything changes it
+        for (String destination : localInterest.keySet()) {
+            link.queue(encodeInterest(INTEREST, destination), false);
+        }
+    }
+
+    private void unregister(PeerLink link) {
+        if (link.peerNode != null) {
+            links.remove(link.peerNode, link);
+        }
+    }
+
+    private static byte[] encode(String command, String header, String value) {
+        return (command + "\n" + header + ":" + value + "\n\n\u0000").getBytes(StandardCharsets.UTF_8);
+    }
+
+    private byte[] encodePeer() {
+        return (PEER + "\nnode:" + nodeId + "\nsecret:" + new String(secret, StandardCharsets.UTF_8) + "\n\n\u0000")
+                .getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] encodeInterest(String command, String destination) {
+        return encode(command, "destination", destination);
+    }
+
+    // the message is forwarded as it was given to the channel, so the peer sends it on unchanged.
+    // it has a content-length since it may hold null chars
+    private byte[] encodeForward(byte[] destination, String msg) {
+        byte[] body = msg.getBytes(StandardCharsets.UTF_8);
+        byte[] length = Integer.toString(body.length).getBytes(StandardCharsets.UTF_8);
+        byte[] frame = new byte[forwardOrigin.length + DESTINATION_HEADER.length + destination.length
+                + CONTENT_LENGTH_HEADER.length + length.length + 2 + body.length + 1];
+        int pos = put(frame, 0, forwardOrigin);
+        pos = put(frame, pos, DESTINATION_HEADER);
+        pos = put(frame, pos, destination);
+        pos = put(frame, pos, CONTENT_LENGTH_HEADER);
+        pos = put(frame, pos, length);
+        frame[pos++] = '\n';
+        frame[pos++] = '\n';
+        pos = put(frame, pos, body);
+        frame[pos] = '\u0000';
+        return frame;
+    }
+
+    private static int put(byte[] dst, int pos, byte[] src) {
+        System.arraycopy(src, 0, dst, pos, src.length);
+        return pos + src.length;
+    }
+
+    /**
+     * A connection to one peer, either way. Until the peer sends PEER the link
+     * only takes that frame.
+     */
+    private class PeerLink {
+        private final Socket socket;
+        // the configured peer this link was dialed to, null for a link the peer dialed
+        private final InetSocketAddress address;
+        private final LinkedBlockingQueue<byte[]> queue = new LinkedBlockingQueue<>();
+        private final AtomicLong queuedBytes = new AtomicLong(0);
+        private final AtomicBoolean linkClosed = new AtomicBoolean(false);
+        // what the peer has subscribers for, destinations and patterns. the patterns are matched with the trie
+        private final Set<String> interest = ConcurrentHashMap.newKeySet();
+        private final TopicTrie<String> patterns = new TopicTrie<>();
+        // the interest over maxInterest was reported, only used by the reader
+        private boolean interestCapped = false;
+        private final Thread reader;
+        private final Thread writer;
+        // the forwards of the current read, by destination, only used by the reader
+        private Map<String, List<String>> batches = new LinkedHashMap<>();
+        // null until the peer says who it is
+        private volatile String peerNode;
+
+        PeerLink(Socket socket, InetSocketAddress address) {
+            this.socket = socket;
+            this.address = address;
+            String name = "federation-" + socket.getRemoteSocketAddress();
+            reader = new Thread(this::readLoop, name + "-reader");
+            writer = new Thread(this::writeLoop, name + "-writer");
+            reader.setDaemon(true);
+            writer.setDaemon(true);
+            queue(encodePeer(), false);
+        }
+
+        void start() {
+            reader.start();
+            writer.start();
+        }
+
+        boolean isOpen() {
+            return !linkClosed.get();
+        }
+
+        boolean interestedIn(String destination) {
+            return interest.contains(destination) || (!patterns.isEmpty() && !patterns.match(destination).isEmpty());
+        }
+
+        /**
+         * @param droppable true if the frame may be dropped when too much waits for the peer
+         * @return false if the frame was dropped
+         */
+        boolean queue(byte[] frame, boolean droppable) {
+            if (linkClosed.get() || (droppable && queuedBytes.get() > maxQueuedBytes)) {
+                return false;
+            }
+            queuedBytes.addAndGet(frame.length);
+            queue.add(frame);
+            return true;
+        }
+
+        void close() {
+            if (!linkClosed.compareAndSet(false, true)) {
+                return;
+            }
+            try {
+                socket.close();
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            }
+            writer.interrupt();
+            queue.clear();
+            unregister(this);
+        }
+
+        private void readLoop() {
+            StompEncoderDecoder decoder = new StompEncoderDecoder();
+            byte[] chunk = new byte[READ_CHUNK_SIZE];
+            try {
+                InputStream in = socket.getInputStream();
+                int read;
+                while (isOpen() && (read = in.read(chunk)) >= 0) {
+                    decoder.decodeFrames(ByteBuffer.wrap(chunk, 0, read), this::onFrame);
+                    deliverBatches();
+                }
+            } catch (IOException ex) {
+                // the peer is gone, the dialer links it again
+            } finally {
+                close();
+            }
+        }
+
+        private void onFrame(StompFrameView frame) {
+            if (peerNode == null) {
+                if (frame.commandEquals(PEER)) {
+                    register(this, frame.getHeader("node"), frame.getHeader("secret"));
+                } else {
+                    close();
+                }
+            } else if (frame.commandEquals(FORWARD)) {
+                String destination = frame.getHeader("destination");
+                // a message of our own that came back is dropped
+                if (destination != null && !frame.headerEquals("origin", nodeId)) {
+                    batches.computeIfAbsent(destination, key -> new ArrayList<>()).add(frame.getBody());
+                }
+            } else if (frame.commandEquals(INTEREST)) {
+                String destination = frame.getHeader("destination");
+                if (destination == null || interest.contains(destination)) {
+                    return;
+                }
+                if (interest.size() >= maxInterest) {
+                    if (!interestCapped) {
+                        interestCapped = true;
+                        System.err.println("Federation peer " + peerNode + " has interest in more than " + maxInterest
+                                + " destinations, the rest is not forwarded to it");
+                    }
+                    return;
+                }
+                interest.add(destination);
+                if (TopicTrie.isPattern(destination)) {
+                    patterns.add(destination, destination);
+                }
+            } else if (frame.commandEquals(UNINTEREST)) {
+                String destination = frame.getHeader("destination");
+                if (destination != null && interest.remove(destination) && TopicTrie.isPattern(destination)) {
+                    patterns.remove(destination, destination);
+                }
+            } else {
+                // the decoder gave up on the link, or the peer speaks something else
+                close();
+            }
+        }
+
+        // the forwards of one read go to every destination as a single batch, in order
+        private void deliverBatches() {
+            if (batches.isEmpty()) {
+                return;
+            }
+            for (Map.Entry<String, List<String>> batch : batches.entrySet()) {
+                received.add(batch.getValue().size());
+                connections.receiveForwarded(batch.getKey(), batch.getValue());
+            }
+            batches = new LinkedHashMap<>();
+        }
+
+        private void writeLoop() {
+            List<byte[]> batch = new ArrayList<>();
+            try {
+                OutputStream out = new BufferedOutputStream(socket.getOutputStream(), WRITE_BUFFER_SIZE);
+                while (isOpen()) {
+                    batch.add(queue.take());
+                    queue.drainTo(batch, MAX_BATCH_FRAMES - 1);
+                    long written = 0;
+                    for (byte[] frame : batch) {
+                        out.write(frame);
+                        written += frame.length;
+                    }
+                    out.flush();
+                    queuedBytes.addAndGet(-written);
+                    batch.clear();
+                }
+            } catch (InterruptedException ex) {
+                // closed
+            } catch (IOException ex) {
+                // the peer is gone, the dialer links it again
+            } finally {
+                close();
+            }
+        }
+    }
+
+    /**
+     * the JMX view of the federation
+     */
+    public interface FederationMXBean {
+        String getNodeId();
+
+        List<String> getPeers();
+
+        long getForwarded();
+
+        long getReceived();
+
+        long getDropped();
+    }
+
+    private class FederationBean implements FederationMXBean {
+        @Override
+        public String getNodeId() {
+            return nodeId;
+        }
+
+        @Override
+        public List<String> getPeers() {
+            return new ArrayList<>(links.keySet());
+        }
+
+        @Override
+        public long getForwarded() {
+            return forwarded.sum();
+        }
+
+        @Override
+        public long getReceived() {
+            return received.sum();
+        }
+
+        @Override
+        public long getDropped() {
+            return dropped.sum();
+        }
+    }
+}
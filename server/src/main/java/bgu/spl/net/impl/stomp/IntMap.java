@@ -0,0 +1,237 @@
+package bgu.spl.net.impl.stomp;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A map from int keys, for the connection and subscription ids, that does not
+ * box its keys.
+ * <p>
+ * The keys and values live in two arrays, open addressed with linear probing.
+ * Lookups and iteration take no lock, changes are synchronized. A slot, once
+ * given a key, keeps it until the table is rebuilt: a removed value leaves a
+ * tombstone behind, which only the same key may take again, so a reader that
+ * saw a value in a slot always reads the key that goes with it. The table is
+ * rebuilt, without its tombstones, when it gets half full.
+ */
+/* package */ class IntMap<V> implements Iterable<V> {
+
+    private static final Object REMOVED = new Object();
+    private static final int MIN_CAPACITY = 8;
+
+    private volatile Table table = new Table(MIN_CAPACITY);
+    // live values, only changed while synchronized
+    private volatile int size = 0;
+    // live values and tombstones in table, only used while synchronized
+    private int used = 0;
+
+    /**
+     * @return the value of the key, null if there is none
+     */
+    @SuppressWarnings("unchecked")
+    public V get(int key) {
+        Table table = this.table;
+        int mask = table.keys.length - 1;
+        for (int i = hash(key) & mask; ; i = (i + 1) & mask) {
+            // the value is read first, its volatile read publishes the key written before it
+            Object value = table.values.get(i);
+            if (value == null) {
+                return null;
+            }
+            if (table.keys[i] == key) {
+                return value == REMOVED ? null : (V) value;
+            }
+        }
+    }
+
+    /**
+     * @return the previous value of the key, null if there was none
+     */
+    public synchronized V put(int key, V value) {
+        return put(key, value, false);
+    }
+
+    /**
+     * @return the current value of the key, null if there was none and value was added
+     */
+    public synchronized V putIfAbsent(int key, V value) {
+        return put(key, value, true);
+    }
+
+    /**
+     * @return the removed value, null if the key had none
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized V remove(int key) {
+        int slot = slotOf(table, key);
+        if (slot < 0) {
+            return null;
+        }
+        Object old = table.values.get(slot);
+        table.values.set(slot, REMOVED);
+        size--;
+        return (V) old;
+    }
+
+    /**
+     * removes the key only if its value is the given one (compared with ==)
+     * @return true if it was removed
+     */
+    public synchronized boolean remove(int key, V value) {
+        int slot = slotOf(table, key);
+        if (slot < 0 || table.values.get(slot) != value) {
+            return false;
+        }
+        table.values.set(slot, REMOVED);
+        size--;
+        return true;
+    }
+
+    public synchronized void clear() {
+        table = new Table(MIN_CAPACITY);
+        size = 0;
+        used = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * iterates the values of the table as it was when iteration started, it may or may not see
+     * the changes made while iterating. the iterator does not support remove
+     */
+    @Override
+    public Iterator<V> iterator() {
+        return new Values<>(table);
+    }
+
+    @SuppressWarnings("unchecked")
+    private V put(int key, V value, boolean onlyIfAbsent) {
+        if (value == null) {
+            throw new NullPointerException();
+        }
+        int mask = table.keys.length - 1;
+        for (int i = hash(key) & mask; ; i = (i + 1) & mask) {
+            Object old = table.values.get(i);
+            if (old == null) {
+                // a new slot, the key is written before the value that publishes it
+                table.keys[i] = key;
+                table.values.set(i, value);
+                size++;
+                if (++used * 2 > table.keys.length) {
+                    rebuild();
+                }
+                return null;
+            }
+            if (table.keys[i] == key) {
+                if (old == REMOVED) {
+                    table.values.set(i, value);
+                    size++;
+                    return null;
+                }
+                if (!onlyIfAbsent) {
+                    table.values.set(i, value);
+                }
+                return (V) old;
+            }
+        }
+    }
+
+    // the slot holding a live value of the key, -1 if there is none
+    private static int slotOf(Table table, int key) {
+        int mask = table.keys.length - 1;
+        for (int i = hash(key) & mask; ; i = (i + 1) & mask) {
+            Object value = table.values.get(i);
+            if (value == null) {
+                return -1;
+            }
+            if (table.keys[i] == key) {
+                return value == REMOVED ? -1 : i;
+            }
+        }
+    }
+
+    // called while synchronized, readers keep using the old table until the new one is published
+    private void rebuild() {
+        int capacity = MIN_CAPACITY;
+        while (capacity < size * 4) {
+            capacity <<= 1;
+        }
+        Table rebuilt = new Table(capacity);
+        int mask = capacity - 1;
+        for (int i = 0; i < table.keys.length; i++) {
+            Object value = table.values.get(i);
+            if (value != null && value != REMOVED) {
+                int j = hash(table.keys[i]) & mask;
+                while (rebuilt.values.get(j) != null) {
+                    j = (j + 1) & mask;
+                }
+                rebuilt.keys[j] = table.keys[i];
+                rebuilt.values.lazySet(j, value);
+            }
+        }
+        used = size;
+        // the volatile write publishes the whole new table
+        table = rebuilt;
+    }
+
+    // ids are mostly consecutive, spread them so they don't fill one run of slots
+    private static int hash(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private static class Table {
+        final int[] keys;
+        // null for a free slot, REMOVED for a tombstone
+        final AtomicReferenceArray<Object> values;
+
+        Table(int capacity) {
+            keys = new int[capacity];
+            values = new AtomicReferenceArray<>(capacity);
+        }
+    }
+
+    private static class Values<V> implements Iterator<V> {
+        private final Table table;
+        private int index = -1;
+        private Object next;
+
+        Values(Table table) {
+            this.table = table;
+            advance();
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public V next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            V value = (V) next;
+            advance();
+            return value;
+        }
+
+        private void advance() {
+            next = null;
+            while (next == null && ++index < table.keys.length) {
+                Object value = table.values.get(index);
+                if (value != REMOVED) {
+                    next = value;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package bgu.spl.net.impl.stomp;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hands out unique 64 bit message ids without a shared counter on the way.
+ * <p>
+ * Every thread takes a block of ids from the shared counter and uses it up
+ * before taking the next one, so the shared counter is touched once per
+ * BLOCK_SIZE ids. Ids are unique but not in order between threads.
+ */
+/* package */ final class MessageIds {
+
+    private static final int BLOCK_SIZE = 1024;
+
+    private static final AtomicLong NEXT_BLOCK = new AtomicLong(0);
+    // [next id, end of the block]
+    private static final ThreadLocal<long[]> BLOCKS = ThreadLocal.withInitial(() -> new long[2]);
+
+    private MessageIds() {
+    }
+
+    public static long next() {
+        long[] block = BLOCKS.get();
+        if (block[0] == block[1]) {
+            long start = NEXT_BLOCK.getAndAdd(BLOCK_SIZE);
+            // ids start at 1
+            block[0] = start + 1;
+            block[1] = start + 1 + BLOCK_SIZE;
+        }
+        return block[0]++;
+    }
+}
@@ -0,0 +1,106 @@
+package bgu.spl.net.impl.stomp;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * The last messages sent to a destination, so a client that subscribes late
+ * gets them right away instead of waiting for the next one.
+ * <p>
+ * The messages are kept encoded (the part shared by all subscribers) in a ring
+ * allocated up front. A message leaves the ring once there are more than
+ * count messages, more than maxBytes bytes or it is older than maxAgeMillis.
+ * Like the channel log, it is only used by the destination's dispatch stripe,
+ * so there is no locking.
+ * <p>
+ * Configured with system properties, for every destination or with a
+ * ".&lt;destination&gt;" suffix for one: stomp.retain.count (default 0, no
+ * retention), stomp.retain.seconds (default 0, no age limit) and
+ * stomp.retain.bytes (default 1m). The default count only applies to the
+ * destinations that have subscribers, a destination nobody subscribed to only
+ * keeps messages if it has a count of its own.
+ */
+/* package */ class RetainedMessages {
+
+    private final ByteBuffer[] messages;
+    private final long[] times;
+    private final long maxBytes;
+    private final long maxAgeMillis;
+    // index of the oldest message
+    private int head = 0;
+    private int size = 0;
+    private long bytes = 0;
+
+    public RetainedMessages(int count, long maxBytes, long maxAgeMillis) {
+        this.messages = new ByteBuffer[count];
+        this.times = new long[count];
+        this.maxBytes = maxBytes;
+        this.maxAgeMillis = maxAgeMillis;
+    }
+
+    /**
+     * @return the retention set for the destination, null if it keeps nothing
+     */
+    public static RetainedMessages forDestination(String destination) {
+        int count = Integer.getInteger("stomp.retain.count." + destination, Integer.getInteger("stomp.retain.count", 0));
+        if (count <= 0) {
+            return null;
+        }
+        long seconds = Long.getLong("stomp.retain.seconds." + destination, Long.getLong("stomp.retain.seconds", 0));
+        long maxBytes = Long.getLong("stomp.retain.bytes." + destination, Long.getLong("stomp.retain.bytes", 1L << 20));
+        return new RetainedMessages(count, maxBytes, TimeUnit.SECONDS.toMillis(seconds));
+    }
+
+    /**
+     * @return true if the destination keeps messages by a count of its own, not only by the default
+     */
+    public static boolean isRetainedByName(String destination) {
+        return Integer.getInteger("stomp.retain.count." + destination, 0) > 0;
+    }
+
+    /**
+     * @param message the encoded message, kept as is so it must not be changed afterwards
+     */
+    public void add(ByteBuffer message) {
+        long now = System.currentTimeMillis();
+        if (size == messages.length) {
+            removeOldest();
+        }
+        int tail = (head + size) % messages.length;
+        messages[tail] = message;
+        times[tail] = now;
+        size++;
+        bytes += message.remaining();
+        while (size > 1 && bytes > maxBytes) {
+            removeOldest();
+        }
+        removeExpired(now);
+    }
+
+    /**
+     * hands the retained messages to the consumer, oldest first
+     */
+    public void forEach(Consumer<ByteBuffer> consumer) {
+        removeExpired(System.currentTimeMillis());
+        for (int i = 0; i < size; i++) {
+            consumer.accept(messages[(head + i) % messages.length].duplicate());
+        }
+    }
+
+    private void removeExpired(long now) {
+        if (maxAgeMillis <= 0) {
+            return;
+        }
+        while (size > 0 && now - times[head] > maxAgeMillis) {
+            removeOldest();
+        }
+    }
+
+    private void removeOldest() {
+        bytes -= messages[head].remaining();
+        messages[head] = null;
+        head = (head + 1) % messages.length;
+        size--;
+    }
+}
@@ -0,0 +1,58 @@
+package bgu.spl.net.impl.stomp;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.LongAdder;
+
+import bgu.spl.net.srv.Metrics;
+
+/**
+ * The commands a client may send, looked up straight from the frame's bytes.
+ */
+public enum StompCommand {
+    CONNECT,
+    SUBSCRIBE,
+    UNSUBSCRIBE,
+    SEND,
+    ACK,
+    NACK,
+    BEGIN,
+    COMMIT,
+    ABORT,
+    DISCONNECT,
+    // anything else
+    UNKNOWN;
+
+    private static final StompCommand[] VALUES = values();
+
+    private final byte[] bytes = name().getBytes(StandardCharsets.UTF_8);
+    // the frames received with this command
+    private final LongAdder received = Metrics.framesIn(name());
+
+    /**
+     * @return the command spelled by bytes[from, to), UNKNOWN if there is none
+     */
+    public static StompCommand of(byte[] bytes, int from, int to) {
+        for (StompCommand command : VALUES) {
+            if (command.matches(bytes, from, to)) {
+                return command;
+            }
+        }
+        return UNKNOWN;
+    }
+
+    /* package */ void countReceived() {
+        received.increment();
+    }
+
+    private boolean matches(byte[] other, int from, int to) {
+        if (to - from != bytes.length || this == UNKNOWN) {
+            return false;
+        }
+        for (int i = 0; i < bytes.length; i++) {
+            if (other[from + i] != bytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
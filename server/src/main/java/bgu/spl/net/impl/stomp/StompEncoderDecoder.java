@@ -1,31 +1,86 @@
 package bgu.spl.net.impl.stomp;
 
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
+import java.util.function.Consumer;
+import java.util.function.IntFunction;
 
 import bgu.spl.net.api.MessageEncoderDecoder;
 
+/**
+ * Decodes STOMP frames. The headers are read as they arrive, and a frame with
+ * a content-length header has its body copied in one go, NUL chars included.
+ * Other frames end at the first NUL char.
+ * <p>
+ * Headers larger than stomp.frame.maxHeaderBytes (default 64k) or frames
+ * larger than stomp.frame.maxFrameBytes (default 8m) are not decoded. The
+ * decoder stops there and ignores the rest of the input, and failure() tells
+ * the protocol why, so it can send an ERROR and close the connection.
+ * Nothing is handed to the consumer in place of the frame.
+ * <p>
+ * decodeFrames hands out every frame as the same StompFrameView over the
+ * decoder's buffer, so nothing is allocated per frame; decode makes a String
+ * of every frame for protocols that keep them.
+ */
 public class StompEncoderDecoder implements MessageEncoderDecoder<String> {
+    private static final int MAX_HEADER_BYTES = Integer.getInteger("stomp.frame.maxHeaderBytes", 64 * 1024);
+    private static final int MAX_FRAME_BYTES = Integer.getInteger("stomp.frame.maxFrameBytes", 8 * 1024 * 1024);
+    private static final int INITIAL_BUFFER_SIZE = 1024;
+    // a buffer grown past this by a big frame is given back once the frame is decoded
+    private static final int MAX_KEPT_BUFFER_SIZE = 64 * 1024;
+    private static final byte[] CONTENT_LENGTH_HEADER = "content-length:".getBytes(StandardCharsets.UTF_8);
+
     // Fields:
-    private byte[] bytesBuff = new byte[1024];
+    private byte[] bytesBuff = new byte[INITIAL_BUFFER_SIZE];
     private int currMsgSize = 0;
+    // where the header line being read starts
+    private int lineStart = 0;
+    // where the body starts, -1 while the headers are still being read
+    private int bodyStart = -1;
+    // the content-length header of the current frame, -1 if it has none
+    private int contentLength = -1;
+    // why a frame could not be decoded, nothing after it is. null while decoding goes on
+    private Failure failure = null;
+    // shows every decoded frame in turn
+    private final StompFrameView view = new StompFrameView();
 
     // methods:
     public String decodeNextByte(byte nextByte) {
-        //checking if we got to the last char of the message
-        if (nextByte == '\u0000'){
-            //make the current bytes a string and return it
-            String result = new String(bytesBuff,0,currMsgSize,StandardCharsets.UTF_8);
-            currMsgSize = 0;
-            return result;
+        // a single byte completes at most one frame
+        String[] decoded = new String[1];
+        decode(ByteBuffer.wrap(new byte[] {nextByte}), frame -> decoded[0] = frame);
+        return decoded[0];
+    }
+
+    public void decode(ByteBuffer buffer, Consumer<String> consumer) {
+        decodeFrames(buffer, frame -> consumer.accept(frame.toString()));
+    }
+
+    /**
+     * like decode, but every frame is handed over as a view of the decoder's buffer
+     * that is only valid until the consumer returns
+     */
+    public void decodeFrames(ByteBuffer buffer, Consumer<StompFrameView> consumer) {
+        while (buffer.hasRemaining() && failure == null) {
+            if (bodyStart < 0) {
+                readHeaders(buffer, consumer);
+            } else if (contentLength >= 0) {
+                readBody(buffer, consumer);
+            } else {
+                readBodyToNull(buffer, consumer);
+            }
         }
-        //else - we are not done yet, so keep the next byte and return nothing
-        if( currMsgSize >= bytesBuff.length){
-            bytesBuff = Arrays.copyOf(bytesBuff, currMsgSize*2);
+        if (failure != null) {
+            buffer.position(buffer.limit());
         }
-        bytesBuff[currMsgSize] = nextByte;
-        currMsgSize++;
-        return null;
+    }
+
+    /**
+     * @return why the decoder stopped, null if it did not. every frame before the one that failed was handed out
+     */
+    public Failure failure() {
+        return failure;
     }
 
     public byte[] encode(String msg){
@@ -33,4 +88,196 @@ public class StompEncoderDecoder implements MessageEncoderDecoder<String> {
         return (msg + '\u0000').getBytes(StandardCharsets.UTF_8);
     }
 
+    // the frame is written into the buffer as it is encoded, without a byte[] in between
+    public ByteBuffer encode(String msg, IntFunction<ByteBuffer> allocator) {
+        ByteBuffer buffer = allocator.apply(StompFrameWriter.utf8Length(msg) + 1);
+        StompFrameWriter.putUtf8(buffer, msg);
+        buffer.put((byte) '\u0000');
+        buffer.flip();
+        return buffer;
+    }
+
+    // the headers are short, so they are read a byte at a time
+    private void readHeaders(ByteBuffer buffer, Consumer<StompFrameView> consumer) {
+        while (buffer.hasRemaining()) {
+            byte nextByte = buffer.get();
+            if (currMsgSize == 0 && (nextByte == '\n' || nextByte == '\r')) {
+                // end of lines between frames are heart-beats
+                continue;
+            }
+            if (nextByte == '\u0000') {
+                // a frame without a blank line after its headers
+                popFrame(consumer);
+                return;
+            }
+            if (currMsgSize >= MAX_HEADER_BYTES) {
+                fail("Headers too large", "The headers of a frame can't be larger than " + MAX_HEADER_BYTES + " bytes.");
+                return;
+            }
+            ensureCapacity(currMsgSize + 1);
+            bytesBuff[currMsgSize++] = nextByte;
+            if (nextByte == '\n') {
+                int lineEnd = currMsgSize - 1;
+                if (lineEnd > lineStart && bytesBuff[lineEnd - 1] == '\r') {
+                    lineEnd--;
+                }
+                if (lineEnd == lineStart) {
+                    // the blank line, the body follows
+                    startBody(consumer);
+                    return;
+                }
+                // the first content-length header counts, the command line is never one
+                if (lineStart > 0 && contentLength < 0 && startsWith(lineStart, lineEnd, CONTENT_LENGTH_HEADER)) {
+                    contentLength = parseLength(lineStart + CONTENT_LENGTH_HEADER.length, lineEnd);
+                    if (contentLength < 0) {
+                        fail("Invalid content-length", "content-length must be a number of bytes.");
+                        return;
+                    }
+                }
+                lineStart = currMsgSize;
+            }
+        }
+    }
+
+    private void startBody(Consumer<StompFrameView> consumer) {
+        bodyStart = currMsgSize;
+        if (contentLength >= 0) {
+            if ((long) bodyStart + contentLength > MAX_FRAME_BYTES) {
+                fail("Frame too large", "A frame can't be larger than " + MAX_FRAME_BYTES + " bytes.");
+                return;
+            }
+            // the whole body fits in one allocation
+            ensureCapacity(bodyStart + contentLength);
+        }
+    }
+
+    private void readBody(ByteBuffer buffer, Consumer<StompFrameView> consumer) {
+        int missing = bodyStart + contentLength - currMsgSize;
+        if (missing > 0) {
+            int length = Math.min(missing, buffer.remaining());
+            buffer.get(bytesBuff, currMsgSize, length);
+            currMsgSize += length;
+            missing -= length;
+        }
+        if (missing == 0 && buffer.hasRemaining()) {
+            // the body is followed by the null char, anything else means the length was wrong
+            if (buffer.get() != '\u0000') {
+                fail("Invalid content-length", "The body is longer than its content-length.");
+                return;
+            }
+            popFrame(consumer);
+        }
+    }
+
+    private void readBodyToNull(ByteBuffer buffer, Consumer<StompFrameView> consumer) {
+        //looking for the end of the current frame inside the buffer
+        int start = buffer.position();
+        int limit = buffer.limit();
+        int end = start;
+        while (end < limit && buffer.get(end) != '\u0000') {
+            end++;
+        }
+        //copying everything up to the null char (or the whole buffer) in one go
+        int length = end - start;
+        if ((long) currMsgSize + length > MAX_FRAME_BYTES) {
+            fail("Frame too large", "A frame can't be larger than " + MAX_FRAME_BYTES + " bytes.");
+            return;
+        }
+        ensureCapacity(currMsgSize + length);
+        buffer.get(bytesBuff, currMsgSize, length);
+        currMsgSize += length;
+        //if we found the null char the frame is complete
+        if (end < limit) {
+            buffer.get();
+            popFrame(consumer);
+        }
+    }
+
+    // the frame can't be decoded, the decoder stops
+    private void fail(String message, String description) {
+        failure = new Failure(message, description);
+        reset();
+    }
+
+    private void popFrame(Consumer<StompFrameView> consumer) {
+        // reset first, so a consumer that throws does not leave the decoder in the middle of a frame.
+        // a buffer dropped by the reset is still the frame's until the consumer returns
+        byte[] frame = bytesBuff;
+        int size = currMsgSize;
+        reset();
+        consumer.accept(view.wrap(frame, 0, size));
+    }
+
+    private void reset() {
+        currMsgSize = 0;
+        lineStart = 0;
+        bodyStart = -1;
+        contentLength = -1;
+        if (bytesBuff.length > MAX_KEPT_BUFFER_SIZE) {
+            bytesBuff = new byte[INITIAL_BUFFER_SIZE];
+        }
+    }
+
+    private boolean startsWith(int from, int to, byte[] prefix) {
+        if (to - from < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (bytesBuff[from + i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // -1 if the bytes are not a number that fits in an int
+    private int parseLength(int from, int to) {
+        long value = 0;
+        // values may be padded with spaces
+        while (from < to && bytesBuff[from] == ' ') {
+            from++;
+        }
+        while (to > from && bytesBuff[to - 1] == ' ') {
+            to--;
+        }
+        if (from == to) {
+            return -1;
+        }
+        for (int i = from; i < to; i++) {
+            if (bytesBuff[i] < '0' || bytesBuff[i] > '9' || value > Integer.MAX_VALUE) {
+                return -1;
+            }
+            value = value * 10 + (bytesBuff[i] - '0');
+        }
+        return value > Integer.MAX_VALUE ? -1 : (int) value;
+    }
+
+    private void ensureCapacity(int size) {
+        if (size > bytesBuff.length) {
+            // doubling stops at the frame limit, so a frame never costs much more than its size
+            bytesBuff = Arrays.copyOf(bytesBuff, Math.max(size, Math.min(bytesBuff.length * 2, MAX_FRAME_BYTES)));
+        }
+    }
+
+    /**
+     * why a frame could not be decoded, as the message header and the body of an ERROR frame
+     */
+    public static final class Failure {
+        private final String message;
+        private final String description;
+
+        private Failure(String message, String description) {
+            this.message = message;
+            this.description = description;
+        }
+
+        public String getMessage() {
+            return message;
+        }
+
+        public String getDescription() {
+            return description;
+        }
+    }
+
 }
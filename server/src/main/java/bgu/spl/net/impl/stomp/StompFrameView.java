@@ -0,0 +1,232 @@
+package bgu.spl.net.impl.stomp;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A received frame, read in place from the bytes it arrived in.
+ * <p>
+ * Parsing only records where the command, every header and the body are, in
+ * arrays the view keeps, so wrapping the next frame allocates nothing. Headers
+ * are looked up by comparing the name with the bytes, and a String is only
+ * made for a value or for the body when someone asks for it. A view is reused
+ * by its decoder for the next frame, so it is only valid until the protocol
+ * returns; copy() keeps a frame for later.
+ * <p>
+ * As in STOMP 1.2, if a header repeats the first value counts.
+ */
+public class StompFrameView {
+
+    private byte[] bytes;
+    private int start;
+    private int end;
+    private StompCommand command;
+    private int commandStart;
+    private int commandEnd;
+    // for every header where its name starts, its colon and where its value ends
+    private int[] headers = new int[8 * 3];
+    private int headerCount;
+    private int bodyStart;
+    // decoded on the first getBody
+    private String body;
+
+    /**
+     * @return a view of a whole frame given as text
+     */
+    public static StompFrameView of(String frame) {
+        byte[] bytes = frame.getBytes(StandardCharsets.UTF_8);
+        return new StompFrameView().wrap(bytes, 0, bytes.length);
+    }
+
+    /**
+     * makes this view show the frame in bytes[start, end), without its null char
+     * @return this view
+     */
+    public StompFrameView wrap(byte[] bytes, int start, int end) {
+        this.bytes = bytes;
+        this.start = start;
+        this.end = end;
+        this.headerCount = 0;
+        this.body = null;
+        int pos = start;
+        // end of lines before the command are heart-beats
+        while (pos < end && (bytes[pos] == '\n' || bytes[pos] == '\r')) {
+            pos++;
+        }
+        int lineEnd = indexOf('\n', pos, end);
+        commandStart = pos;
+        commandEnd = withoutCarriageReturn(pos, lineEnd);
+        command = StompCommand.of(bytes, commandStart, commandEnd);
+        pos = lineEnd + 1;
+        bodyStart = end;
+        while (pos < end) {
+            lineEnd = indexOf('\n', pos, end);
+            int valueEnd = withoutCarriageReturn(pos, lineEnd);
+            if (valueEnd == pos) {
+                // the blank line, the body follows
+                bodyStart = Math.min(lineEnd + 1, end);
+                break;
+            }
+            int colon = indexOf(':', pos, valueEnd);
+            if (colon < valueEnd) {
+                addHeader(pos, colon, valueEnd);
+            }
+            pos = lineEnd + 1;
+        }
+        return this;
+    }
+
+    public StompCommand getCommand() {
+        return command;
+    }
+
+    /**
+     * @return the command as it was sent, for an UNKNOWN one
+     */
+    public String getCommandText() {
+        return new String(bytes, commandStart, commandEnd - commandStart, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @param command compared char by char, for commands that are not a StompCommand
+     * @return true if the frame has the given command
+     */
+    public boolean commandEquals(String command) {
+        return regionEquals(commandStart, commandEnd, command);
+    }
+
+    public boolean hasHeader(String name) {
+        return find(name) >= 0;
+    }
+
+    /**
+     * @return the value of the header, null if the frame does not have it
+     */
+    public String getHeader(String name) {
+        int header = find(name);
+        if (header < 0) {
+            return null;
+        }
+        int valueStart = headers[header + 1] + 1;
+        return new String(bytes, valueStart, headers[header + 2] - valueStart, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @param value compared char by char, so it should be ASCII
+     * @return true if the frame has the header and its value is the given one
+     */
+    public boolean headerEquals(String name, String value) {
+        int header = find(name);
+        if (header < 0) {
+            return false;
+        }
+        return regionEquals(headers[header + 1] + 1, headers[header + 2], value);
+    }
+
+    /**
+     * reads a number header without making a String of it
+     * @throws NumberFormatException if the frame does not have the header or it is not an int
+     */
+    public int getIntHeader(String name) {
+        long value = getLongHeader(name);
+        if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+            throw new NumberFormatException("For input string: \"" + getHeader(name) + "\"");
+        }
+        return (int) value;
+    }
+
+    /**
+     * reads a number header without making a String of it
+     * @throws NumberFormatException if the frame does not have the header or it is not a long
+     */
+    public long getLongHeader(String name) {
+        int header = find(name);
+        if (header < 0) {
+            throw new NumberFormatException("No " + name + " header");
+        }
+        int pos = headers[header + 1] + 1;
+        int valueEnd = headers[header + 2];
+        boolean negative = pos < valueEnd && bytes[pos] == '-';
+        if (negative) {
+            pos++;
+        }
+        if (pos == valueEnd || valueEnd - pos > 19) {
+            throw new NumberFormatException("For input string: \"" + getHeader(name) + "\"");
+        }
+        long value = 0;
+        for (; pos < valueEnd; pos++) {
+            int digit = bytes[pos] - '0';
+            // a 19 digit number may still overflow, which shows as going negative
+            if (digit < 0 || digit > 9 || (value = value * 10 + digit) < 0) {
+                throw new NumberFormatException("For input string: \"" + getHeader(name) + "\"");
+            }
+        }
+        return negative ? -value : value;
+    }
+
+    public String getBody() {
+        if (body == null) {
+            body = new String(bytes, bodyStart, end - bodyStart, StandardCharsets.UTF_8);
+        }
+        return body;
+    }
+
+    /**
+     * @return a view of its own copy of the frame, that stays valid after this one is reused
+     */
+    public StompFrameView copy() {
+        return new StompFrameView().wrap(Arrays.copyOfRange(bytes, start, end), 0, end - start);
+    }
+
+    /**
+     * @return the whole frame as text, without its null char
+     */
+    @Override
+    public String toString() {
+        return new String(bytes, start, end - start, StandardCharsets.UTF_8);
+    }
+
+    private void addHeader(int nameStart, int colon, int valueEnd) {
+        if (headerCount * 3 == headers.length) {
+            headers = Arrays.copyOf(headers, headers.length * 2);
+        }
+        headers[headerCount * 3] = nameStart;
+        headers[headerCount * 3 + 1] = colon;
+        headers[headerCount * 3 + 2] = valueEnd;
+        headerCount++;
+    }
+
+    // the index of the header in headers, -1 if there is none
+    private int find(String name) {
+        for (int i = 0; i < headerCount * 3; i += 3) {
+            if (regionEquals(headers[i], headers[i + 1], name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private boolean regionEquals(int from, int to, String text) {
+        if (to - from != text.length()) {
+            return false;
+        }
+        for (int i = 0; i < text.length(); i++) {
+            if (bytes[from + i] != text.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // the index of b in bytes[from, to), to if it is not there
+    private int indexOf(char b, int from, int to) {
+        while (from < to && bytes[from] != b) {
+            from++;
+        }
+        return from;
+    }
+
+    private int withoutCarriageReturn(int lineStart, int lineEnd) {
+        return lineEnd > lineStart && bytes[lineEnd - 1] == '\r' ? lineEnd - 1 : lineEnd;
+    }
+}
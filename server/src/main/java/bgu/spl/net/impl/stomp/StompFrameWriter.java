@@ -0,0 +1,150 @@
+package bgu.spl.net.impl.stomp;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.LongAdder;
+
+import bgu.spl.net.srv.BufferPool;
+import bgu.spl.net.srv.Metrics;
+
+/**
+ * Encodes the frames the server answers with straight into a buffer leased
+ * from the BufferPool, ready to be sent with ConnectionsImpl.sendFrame.
+ * <p>
+ * The command and header names are encoded once, here, so only the values
+ * are encoded per frame, and no String of the frame is ever made. Like
+ * StompFrame, header values are written as they are, without escaping.
+ */
+/* package */ final class StompFrameWriter {
+
+    // the frames-out counters of the frames written here, for ConnectionsImpl.sendFrame
+    static final LongAdder RECEIPT = Metrics.framesOut("RECEIPT");
+    static final LongAdder CONNECTED = Metrics.framesOut("CONNECTED");
+    static final LongAdder ERROR = Metrics.framesOut("ERROR");
+
+    private static final byte[] RECEIPT_ID_LINE = "RECEIPT\nreceipt-id:".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] CONNECTED_LINES = "CONNECTED\nversion:1.2\n".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] DEFLATE_LINE = "accept-encoding:deflate\n".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] ERROR_LINE = "ERROR\n".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] RECEIPT_ID_HEADER = "receipt-id:".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] MESSAGE_HEADER = "message:".getBytes(StandardCharsets.UTF_8);
+    // the end of the last header, the blank line and the null char around a body
+    private static final int FRAME_END_SIZE = 3;
+
+    private StompFrameWriter() {
+    }
+
+    /**
+     * @return RECEIPT with the given receipt-id
+     */
+    static ByteBuffer receipt(String receiptId) {
+        ByteBuffer frame = BufferPool.lease(RECEIPT_ID_LINE.length + maxSize(receiptId) + FRAME_END_SIZE);
+        frame.put(RECEIPT_ID_LINE);
+        putUtf8(frame, receiptId);
+        return end(frame, null);
+    }
+
+    /**
+     * @param deflate true if the client is told MESSAGE bodies may be deflated
+     * @return CONNECTED for STOMP 1.2
+     */
+    static ByteBuffer connected(boolean deflate) {
+        ByteBuffer frame = BufferPool.lease(CONNECTED_LINES.length + DEFLATE_LINE.length + 2);
+        frame.put(CONNECTED_LINES);
+        if (deflate) {
+            frame.put(DEFLATE_LINE);
+        }
+        frame.put((byte) '\n');
+        frame.put((byte) '\u0000');
+        frame.flip();
+        return frame;
+    }
+
+    /**
+     * @param receiptId the receipt of the frame that failed, may be null
+     * @return ERROR with the message header and the description as its body
+     */
+    static ByteBuffer error(String receiptId, String message, String description) {
+        int size = ERROR_LINE.length + RECEIPT_ID_HEADER.length + maxSize(receiptId) + 1
+                + MESSAGE_HEADER.length + maxSize(message) + maxSize(description) + FRAME_END_SIZE;
+        ByteBuffer frame = BufferPool.lease(size);
+        frame.put(ERROR_LINE);
+        if (receiptId != null) {
+            frame.put(RECEIPT_ID_HEADER);
+            putUtf8(frame, receiptId);
+            frame.put((byte) '\n');
+        }
+        frame.put(MESSAGE_HEADER);
+        putUtf8(frame, message);
+        return end(frame, description);
+    }
+
+    // ends the last header line, writes the blank line, the body and the null char
+    private static ByteBuffer end(ByteBuffer frame, String body) {
+        frame.put((byte) '\n');
+        frame.put((byte) '\n');
+        putUtf8(frame, body);
+        frame.put((byte) '\u0000');
+        frame.flip();
+        return frame;
+    }
+
+    // no char takes more than 3 bytes, a surrogate pair takes 4 for its 2 chars
+    private static int maxSize(String value) {
+        return value == null ? 0 : value.length() * 3;
+    }
+
+    /**
+     * @return the number of bytes putUtf8 writes for the value
+     */
+    static int utf8Length(String value) {
+        int length = value.length();
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c >= 0x800) {
+                if (Character.isHighSurrogate(c) && i + 1 < value.length()
+                        && Character.isLowSurrogate(value.charAt(i + 1))) {
+                    // 4 bytes for the 2 chars
+                    length += 2;
+                    i++;
+                } else if (!Character.isSurrogate(c)) {
+                    length += 2;
+                }
+            } else if (c >= 0x80) {
+                length++;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * writes the value as UTF-8, a lone surrogate is written as '?' like String.getBytes does
+     */
+    static void putUtf8(ByteBuffer frame, String value) {
+        if (value == null) {
+            return;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                frame.put((byte) c);
+            } else if (c < 0x800) {
+                frame.put((byte) (0xC0 | (c >> 6)));
+                frame.put((byte) (0x80 | (c & 0x3F)));
+            } else if (Character.isHighSurrogate(c) && i + 1 < value.length()
+                    && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                frame.put((byte) (0xF0 | (codePoint >> 18)));
+                frame.put((byte) (0x80 | ((codePoint >> 12) & 0x3F)));
+                frame.put((byte) (0x80 | ((codePoint >> 6) & 0x3F)));
+                frame.put((byte) (0x80 | (codePoint & 0x3F)));
+            } else if (Character.isSurrogate(c)) {
+                frame.put((byte) '?');
+            } else {
+                frame.put((byte) (0xE0 | (c >> 12)));
+                frame.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                frame.put((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+    }
+}
@@ -1,16 +1,28 @@
 package bgu.spl.net.impl.stomp;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
 import java.util.UUID;
 import bgu.spl.net.srv.Connections;
 
+import bgu.spl.net.api.MessageEncoderDecoder;
 import bgu.spl.net.api.StompMessagingProtocol;
 import bgu.spl.net.impl.data.Database;
 import bgu.spl.net.impl.data.LoginStatus;
 
 public class StompMessagingProtocolImpl implements StompMessagingProtocol<String> {
 
+    private static final String SYSTEM_DESTINATION_PREFIX = "/$SYS/";
+    // most transactions a connection may have open, and most frames one of them may hold
+    private static final int MAX_TRANSACTIONS = Integer.getInteger("stomp.transaction.maxOpen", 16);
+    private static final int MAX_TRANSACTION_FRAMES = Integer.getInteger("stomp.transaction.maxFrames", 10000);
+
     private int connectionId;
     private ConnectionsImpl<String> connections;
     private boolean shouldTerminate = false;
@@ -18,6 +30,8 @@ public class StompMessagingProtocolImpl implements StompMessagingProtocol<String
 
     // creating a map that will match subscriptionId to channel name
     private Map<Integer, String> activeSubscriptions = new ConcurrentHashMap<>();
+    // the SEND, ACK and NACK frames of every open transaction by transaction id, held back until COMMIT
+    private Map<String, List<StompFrameView>> transactions = new ConcurrentHashMap<>();
 
     public void start(int connectionId, Connections<String> connections) {
         this.connectionId = connectionId;
@@ -25,30 +39,72 @@ public class StompMessagingProtocolImpl implements StompMessagingProtocol<String
     }
 
     public void process(String message) {
-        StompFrame frame = StompFrame.fromString(message);
-        if (frame == null) {
+        process(StompFrameView.of(message));
+    }
+
+    // our own decoder hands out its frames in place, without making Strings of them
+    public void process(ByteBuffer bytes, MessageEncoderDecoder<String> decoder, BooleanSupplier stop) {
+        if (!(decoder instanceof StompEncoderDecoder)) {
+            StompMessagingProtocol.super.process(bytes, decoder, stop);
             return;
         }
+        StompEncoderDecoder stompDecoder = (StompEncoderDecoder) decoder;
+        stompDecoder.decodeFrames(bytes, frame -> {
+            if (!stop.getAsBoolean()) {
+                process(frame);
+            }
+        });
+        // a frame the decoder could not take ends the connection, after the frames before it
+        StompEncoderDecoder.Failure failure = stompDecoder.failure();
+        if (failure != null && !stop.getAsBoolean()) {
+            sendError(null, failure.getMessage(), failure.getDescription());
+        }
+    }
+
+    // the frame is only valid until we return, anything kept for later is copied out of it
+    private void process(StompFrameView frame) {
+        frame.getCommand().countReceived();
 
-        if (!isConnected && !frame.getCommand().equals("CONNECT")) {
+        if (!isConnected && frame.getCommand() != StompCommand.CONNECT) {
             // if the client is not connected yet, we only accept CONNECT frames
             sendError(frame, "Client isn't logged in", "You must log in first");
             return;
         }
 
         try {
-            if (frame.getCommand().equals("CONNECT")) {
-                handleConnect(frame);
-            } else if (frame.getCommand().equals("SUBSCRIBE")) {
-                handleSubscribe(frame);
-            } else if (frame.getCommand().equals("UNSUBSCRIBE")) {
-                handleUnsubscribe(frame);
-            } else if (frame.getCommand().equals("SEND")) {
-                handleSend(frame);
-            } else if (frame.getCommand().equals("DISCONNECT")) {
-                handleDisconnect(frame);
-            } else {
-                sendError(frame, "Unknown command", "The command " + frame.getCommand() + " is not recognized.");
+            switch (frame.getCommand()) {
+                case CONNECT:
+                    handleConnect(frame);
+                    break;
+                case SUBSCRIBE:
+                    handleSubscribe(frame);
+                    break;
+                case UNSUBSCRIBE:
+                    handleUnsubscribe(frame);
+                    break;
+                case SEND:
+                    handleSend(frame);
+                    break;
+                case ACK:
+                    handleAck(frame, true);
+                    break;
+                case NACK:
+                    handleAck(frame, false);
+                    break;
+                case BEGIN:
+                    handleBegin(frame);
+                    break;
+                case COMMIT:
+                    handleCommit(frame);
+                    break;
+                case ABORT:
+                    handleAbort(frame);
+                    break;
+                case DISCONNECT:
+                    handleDisconnect(frame);
+                    break;
+                default:
+                    sendError(frame, "Unknown command", "The command " + frame.getCommandText() + " is not recognized.");
             }
         } catch (Exception e) {
             sendError(frame, "Server Error", e.getMessage());
@@ -59,9 +115,17 @@ public class StompMessagingProtocolImpl implements StompMessagingProtocol<String
         return shouldTerminate;
     }
 
+    public void onClose() {
+        // the client may have left without a DISCONNECT, it is logged out and its subscriptions
+        // end here (what it did not acknowledge is kept for when it comes back). open transactions are aborted
+        transactions.clear();
+        Database.getInstance().logout(connectionId);
+        connections.disconnect(connectionId);
+    }
+
     // Private helper methods:
 
-    private void handleConnect(StompFrame frame) {
+    private void handleConnect(StompFrameView frame) {
         // extracting headers
         String login = frame.getHeader("login");
         String passcode = frame.getHeader("passcode");
@@ -81,10 +145,14 @@ public class StompMessagingProtocolImpl implements StompMessagingProtocol<String
         if (status == LoginStatus.LOGGED_IN_SUCCESSFULLY || status == LoginStatus.ADDED_NEW_USER) {
             isConnected = true;
 
-            // sending the CONNECTED frame back to the client
-            StompFrame connectedFrame = new StompFrame("CONNECTED");
-            connectedFrame.addHeader("version", "1.2");
-            connections.send(connectionId, connectedFrame.toString());
+            // sending the CONNECTED frame back to the client,
+            // large MESSAGE bodies are deflated for a client with deflate in accept-encoding,
+            // the CONNECTED frame tells it the server agreed
+            boolean deflate = acceptsDeflate(frame.getHeader("accept-encoding"));
+            if (deflate) {
+                connections.acceptDeflate(connectionId, true);
+            }
+            connections.sendFrame(connectionId, StompFrameWriter.CONNECTED, StompFrameWriter.connected(deflate));
         } else {
             // failed to log in
             sendError(frame, "Login Failed", "Invalid login or passcode.");
@@ -92,37 +160,75 @@ public class StompMessagingProtocolImpl implements StompMessagingProtocol<String
         }
     }
 
-    private void handleSubscribe(StompFrame frame) {
+    // accept-encoding is a comma separated list, like "deflate, gzip"
+    private static boolean acceptsDeflate(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+        for (String encoding : acceptEncoding.split(",")) {
+            if (encoding.trim().equalsIgnoreCase("deflate")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void handleSubscribe(StompFrameView frame) {
         // extracting headers
         String destination = frame.getHeader("destination");
-        String idStr = frame.getHeader("id");
         // if missing headers, send error
-        if (destination == null || idStr == null) {
+        if (destination == null || !frame.hasHeader("id")) {
             sendError(frame, "Missing Headers", "SUBSCRIBE frame must contain destination and ID headers.");
             return;
         }
-        int subscriptionId = Integer.parseInt(idStr);
+        if (!TopicTrie.isValidPattern(destination)) {
+            sendError(frame, "Invalid destination", "'#' can only be the last level of a destination.");
+            return;
+        }
+        String replayFrom = frame.getHeader("replay-from");
+        if (replayFrom != null && !ChannelLog.isPosition(replayFrom)) {
+            sendError(frame, "Invalid replay-from", "replay-from must be earliest, an offset or time:<epoch millis>.");
+            return;
+        }
+        AckWindow ack = null;
+        if (frame.hasHeader("ack") && !frame.headerEquals("ack", "auto")) {
+            boolean individual = frame.headerEquals("ack", "client-individual");
+            if (!individual && !frame.headerEquals("ack", "client")) {
+                sendError(frame, "Invalid ack", "ack must be auto, client or client-individual.");
+                return;
+            }
+            int prefetch = frame.hasHeader("prefetch") ? frame.getIntHeader("prefetch") : AckWindow.DEFAULT_PREFETCH;
+            if (prefetch <= 0) {
+                sendError(frame, "Invalid prefetch", "prefetch must be a positive number.");
+                return;
+            }
+            ack = new AckWindow(individual, prefetch,
+                    Database.getInstance().getUsername(connectionId));
+        }
+        int subscriptionId = frame.getIntHeader("id");
         // adding the subscription if not already exists
         if(activeSubscriptions.containsKey(subscriptionId)){
             sendError(frame,"Error", "Subscription ID " + subscriptionId + "already exists.");
             return;
         }
         activeSubscriptions.put(subscriptionId, destination);
-        connections.subscribe(destination, connectionId, subscriptionId);
-
-        handleReceipt(frame);
+        // the receipt goes out before any old message of the channel
+        // with conflate:<key>, queued messages with the same value for key are replaced by newer ones
+        String conflateOn = frame.getHeader("conflate");
+        String receiptId = frame.getHeader("receipt");
+        connections.subscribe(destination, connectionId, subscriptionId, replayFrom, ack, conflateOn,
+                () -> sendReceipt(receiptId));
     }
 
-    private void handleUnsubscribe(StompFrame frame) {
+    private void handleUnsubscribe(StompFrameView frame) {
         // extracting headers
-        String ID = frame.getHeader("id");
         // if missing headers, send error
-        if (ID == null) {
+        if (!frame.hasHeader("id")) {
             sendError(frame, "Missing Headers", "UNSUBSCRIBE frame must contain ID header.");
             return;
         }
         // trying to remove the subscription
-        int subscriptionId = Integer.parseInt(ID);
+        int subscriptionId = frame.getIntHeader("id");
         String channel = activeSubscriptions.remove(subscriptionId);
         // if the channel existed, unsubscribe
         if (channel != null) {
@@ -134,7 +240,26 @@ public class StompMessagingProtocolImpl implements StompMessagingProtocol<String
         }
     }
 
-    private void handleSend(StompFrame frame) {
+    private void handleSend(StompFrameView frame) {
+        // extracting headers
+        String destination = frame.getHeader("destination");
+        // if missing headers, send error
+        if (destination == null) {
+            sendError(frame, "Missing Headers", "SEND frame must contain destination header.");
+            return;
+        }
+        if (TopicTrie.isPattern(destination)) {
+            sendError(frame, "Invalid destination", "Messages can't be sent to a wildcard destination.");
+            return;
+        }
+        if (destination.startsWith(SYSTEM_DESTINATION_PREFIX)) {
+            sendError(frame, "Invalid destination", "Only the server sends to " + SYSTEM_DESTINATION_PREFIX + " destinations.");
+            return;
+        }
+        if (frame.hasHeader("transaction")) {
+            holdForCommit(frame);
+            return;
+        }
         // check who is the sender
         String username = Database.getInstance().getUsername(connectionId);
 
@@ -142,22 +267,150 @@ public class StompMessagingProtocolImpl implements StompMessagingProtocol<String
             sendError(frame, "Not logged in", "You must login before sending messages.");
             return;
         }
+        // preparing the new body with the username
+        String newbody = username + "@@@@@" + frame.getBody();
+        // handing the message to the channel's dispatch stripe, the subscribers get it from there.
+        // the receipt goes out once the message is as durable as the channel's log asks for
+        String receiptId = frame.getHeader("receipt");
+        connections.send(destination, newbody, () -> sendReceipt(receiptId));
+    }
+
+    private void handleAck(StompFrameView frame, boolean accepted) {
         // extracting headers
-        String destination = frame.getHeader("destination");
-        String body = frame.getBody();
         // if missing headers, send error
-        if (destination == null) {
-            sendError(frame, "Missing Headers", "SEND frame must contain destination header.");
+        if (!frame.hasHeader("id")) {
+            sendError(frame, "Missing Headers", frame.getCommand() + " frame must contain id header.");
             return;
         }
-        // preparing the new body with the username
-        String newbody = username + "@@@@@" + body;
-        // sending the message to all subscribers
-        connections.send(destination, newbody);
+        if (frame.hasHeader("transaction")) {
+            holdForCommit(frame);
+            return;
+        }
+        if (applyAck(frame, accepted)) {
+            handleReceipt(frame);
+        }
+    }
+
+    // returns false if an ERROR was sent instead
+    private boolean applyAck(StompFrameView frame, boolean accepted) {
+        if (!connections.ack(connectionId, messageIdOf(frame), accepted)) {
+            sendError(frame, "Unknown message", "Message " + frame.getHeader("id") + " is not waiting for an ACK or NACK.");
+            return false;
+        }
+        return true;
+    }
+
+    // the id of an ACK or NACK is the ack header of the MESSAGE, which is its message-id. -1 if it is not a number
+    private static long messageIdOf(StompFrameView frame) {
+        try {
+            return frame.getLongHeader("id");
+        } catch (NumberFormatException ex) {
+            return -1;
+        }
+    }
+
+    private void handleBegin(StompFrameView frame) {
+        String transaction = frame.getHeader("transaction");
+        if (transaction == null) {
+            sendError(frame, "Missing Headers", "BEGIN frame must contain transaction header.");
+            return;
+        }
+        if (transactions.size() >= MAX_TRANSACTIONS && !transactions.containsKey(transaction)) {
+            sendError(frame, "Too many transactions", "At most " + MAX_TRANSACTIONS + " transactions can be open at once.");
+            return;
+        }
+        if (transactions.putIfAbsent(transaction, new ArrayList<>()) != null) {
+            sendError(frame, "Transaction exists", "Transaction " + transaction + " was already started.");
+            return;
+        }
+        handleReceipt(frame);
+    }
+
+    // a SEND, ACK or NACK of a transaction waits for the COMMIT, its receipt is sent now
+    private void holdForCommit(StompFrameView frame) {
+        String transaction = frame.getHeader("transaction");
+        List<StompFrameView> held = transactions.get(transaction);
+        if (held == null) {
+            sendError(frame, "Unknown transaction", "Transaction " + transaction + " was not started.");
+            return;
+        }
+        if (held.size() >= MAX_TRANSACTION_FRAMES) {
+            // the connection is closed after the error, the transaction goes with it
+            transactions.remove(transaction);
+            sendError(frame, "Transaction too large", "A transaction can hold at most " + MAX_TRANSACTION_FRAMES + " frames.");
+            return;
+        }
+        held.add(frame.copy());
         handleReceipt(frame);
     }
 
-    private void handleDisconnect(StompFrame frame) {
+    private void handleCommit(StompFrameView frame) {
+        String transaction = frame.getHeader("transaction");
+        if (transaction == null) {
+            sendError(frame, "Missing Headers", "COMMIT frame must contain transaction header.");
+            return;
+        }
+        List<StompFrameView> held = transactions.remove(transaction);
+        if (held == null) {
+            sendError(frame, "Unknown transaction", "Transaction " + transaction + " was not started.");
+            return;
+        }
+        String username = Database.getInstance().getUsername(connectionId);
+        if (username == null) {
+            sendError(frame, "Not logged in", "You must login before sending messages.");
+            return;
+        }
+        // all or nothing: every ACK and NACK is checked before any of them is applied or anything is sent.
+        // only this connection acknowledges its messages, so they are still waiting when applied
+        for (StompFrameView heldFrame : held) {
+            if (heldFrame.getCommand() != StompCommand.SEND
+                    && !connections.isWaitingForAck(connectionId, messageIdOf(heldFrame))) {
+                sendError(frame, "Unknown message", "Message " + heldFrame.getHeader("id")
+                        + " is not waiting for an ACK or NACK, transaction " + transaction + " was not committed.");
+                return;
+            }
+        }
+        // the messages of every destination go out as one batch, in the order they were sent
+        Map<String, List<String>> batches = new LinkedHashMap<>();
+        for (StompFrameView heldFrame : held) {
+            if (heldFrame.getCommand() == StompCommand.SEND) {
+                batches.computeIfAbsent(heldFrame.getHeader("destination"), key -> new ArrayList<>())
+                        .add(username + "@@@@@" + heldFrame.getBody());
+            } else {
+                // false only if an earlier ACK of the transaction covered it already (ack:client)
+                connections.ack(connectionId, messageIdOf(heldFrame), heldFrame.getCommand() == StompCommand.ACK);
+            }
+        }
+        if (batches.isEmpty()) {
+            handleReceipt(frame);
+            return;
+        }
+        // a single receipt, once every batch is as durable as its channel's log asks for
+        AtomicInteger left = new AtomicInteger(batches.size());
+        String receiptId = frame.getHeader("receipt");
+        for (Map.Entry<String, List<String>> batch : batches.entrySet()) {
+            connections.sendAll(batch.getKey(), batch.getValue(), () -> {
+                if (left.decrementAndGet() == 0) {
+                    sendReceipt(receiptId);
+                }
+            });
+        }
+    }
+
+    private void handleAbort(StompFrameView frame) {
+        String transaction = frame.getHeader("transaction");
+        if (transaction == null) {
+            sendError(frame, "Missing Headers", "ABORT frame must contain transaction header.");
+            return;
+        }
+        if (transactions.remove(transaction) == null) {
+            sendError(frame, "Unknown transaction", "Transaction " + transaction + " was not started.");
+            return;
+        }
+        handleReceipt(frame);
+    }
+
+    private void handleDisconnect(StompFrameView frame) {
         // handling receipt first
         handleReceipt(frame);
         isConnected = false;
@@ -166,32 +419,29 @@ public class StompMessagingProtocolImpl implements StompMessagingProtocol<String
         Database.getInstance().logout(connectionId);
         // disconnecting the user
         connections.disconnect(connectionId);
-        // clearing active subscriptions
+        // clearing active subscriptions, open transactions are aborted
         activeSubscriptions.clear();
+        transactions.clear();
     }
 
-    private void handleReceipt(StompFrame frame) {
-        String receiptId = frame.getHeader("receipt");
+    private void handleReceipt(StompFrameView frame) {
+        if (frame.hasHeader("receipt")) {
+            sendReceipt(frame.getHeader("receipt"));
+        }
+    }
+
+    // may run after the frame is gone, so it gets the receipt id itself
+    private void sendReceipt(String receiptId) {
         // if receipt header exists, send RECEIPT frame
         if (receiptId != null) {
-            StompFrame receiptFrame = new StompFrame("RECEIPT");
-            receiptFrame.addHeader("receipt-id", receiptId);
-            connections.send(connectionId, receiptFrame.toString());
+            connections.sendFrame(connectionId, StompFrameWriter.RECEIPT, StompFrameWriter.receipt(receiptId));
         }
     }
 
-    private void sendError(StompFrame frame, String msg, String description) {
-        StompFrame errorFrame = new StompFrame("ERROR");
+    private void sendError(StompFrameView frame, String msg, String description) {
         // if the original frame has a receipt header, include it in the error frame
-        String receiptId = frame.getHeader("receipt");
-        // if receipt header exists, send RECEIPT frame
-        if (frame != null && receiptId != null) {
-            errorFrame.addHeader("receipt-id", receiptId);
-        }
-        // adding error details
-        errorFrame.addHeader("message", msg);
-        errorFrame.setBody(description);
-        connections.send(connectionId, errorFrame.toString());
+        String receiptId = frame != null ? frame.getHeader("receipt") : null;
+        connections.sendFrame(connectionId, StompFrameWriter.ERROR, StompFrameWriter.error(receiptId, msg, description));
         shouldTerminate = true;
     }
 }
@@ -4,15 +4,16 @@ import bgu.spl.net.srv.BlockingConnectionHandler;
 
 import java.io.IOException;
 
+import bgu.spl.net.srv.Backpressure;
 import bgu.spl.net.srv.BaseServer;
-import bgu.spl.net.srv.Server;
 import bgu.spl.net.srv.Reactor;
+import bgu.spl.net.srv.VirtualThreads;
 
 public class StompServer {
 
     public static void main(String[] args) {
         if (args.length < 2) {
-            System.out.println("Usage: StompServer <port> <server_type(tpc,reactor)>");
+            System.out.println("Usage: StompServer <port> <server_type(tpc,vtpc,reactor)> [reactor_threads] [reactor_selectors]");
             System.exit(1);
         }
 
@@ -20,12 +21,35 @@ public class StompServer {
         String serverType = args[1];
 
         if (serverType.equals("tpc")) {
-            try (Server<String> server = new BaseServer<String>(port, () -> new StompMessagingProtocolImpl(),
+            try (BaseServer<String> server = new BaseServer<String>(port, () -> new StompMessagingProtocolImpl(),
                     () -> new StompEncoderDecoder(), null) {
                 protected void execute(BlockingConnectionHandler<String> handler) {
                     new Thread(handler).start();
                 }
             }) {
+                server.setBackpressure(slowConsumerLimits());
+                server.serve();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        else if (serverType.equals("vtpc")) {
+            // thread per client, but every client runs on a virtual thread
+            if (!VirtualThreads.isSupported()) {
+                System.out.println("Virtual threads need Java 21, running clients on platform threads");
+            }
+            try (BaseServer<String> server = new BaseServer<String>(port, () -> new StompMessagingProtocolImpl(),
+                    () -> new StompEncoderDecoder(), null) {
+                protected void execute(BlockingConnectionHandler<String> handler) {
+                    VirtualThreads.start(handler);
+                }
+
+                protected void executeWriter(Runnable writer) {
+                    VirtualThreads.start(writer);
+                }
+            }) {
+                server.setBackpressure(slowConsumerLimits());
                 server.serve();
             } catch (IOException e) {
                 e.printStackTrace();
@@ -33,10 +57,12 @@ public class StompServer {
         }
 
         else if (serverType.equals("reactor")) {
-            // choosing default number of threads, because we didnt get it in args
-            int numThreads = 5;
-            try (Server<String> server = new Reactor<String>(numThreads, port, () -> new StompMessagingProtocolImpl(),
+            // choosing default number of threads and a single selector, unless we got them in args
+            int numThreads = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+            int numSelectors = args.length > 3 ? Integer.parseInt(args[3]) : 1;
+            try (Reactor<String> server = new Reactor<String>(numThreads, numSelectors, port, () -> new StompMessagingProtocolImpl(),
                     () -> new StompEncoderDecoder(), null)) {
+                server.setBackpressure(slowConsumerLimits());
                 server.serve();
             } catch (IOException e) {
                 e.printStackTrace();
@@ -46,4 +72,12 @@ public class StompServer {
             System.exit(1);
         }
     }
+
+    // write queue limits from the system properties, slow consumers we disconnect get an ERROR frame
+    private static Backpressure slowConsumerLimits() {
+        StompFrame errorFrame = new StompFrame("ERROR");
+        errorFrame.addHeader("message", "Slow consumer");
+        errorFrame.setBody("You are not reading the messages fast enough, disconnecting.");
+        return Backpressure.fromSystemProperties(new StompEncoderDecoder().encode(errorFrame.toString()));
+    }
 }
\ No newline at end of file
@@ -0,0 +1,195 @@
+package bgu.spl.net.impl.stomp;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Wildcard subscriptions, kept in a trie by destination level.
+ * <p>
+ * A destination is split into levels on '/'. In a pattern, a "*" level
+ * matches exactly one level and a "#" level, which may only be the last
+ * one, matches any number of levels (including none), so "/sports/*"
+ * matches "/sports/germany_japan" and "/#" matches every destination.
+ * <p>
+ * Matching walks at most the exact, "*" and "#" children of every level, so
+ * its cost depends on the depth of the destination and not on the number of
+ * patterns. Adding and removing patterns is synchronized, matching takes no
+ * lock.
+ * <p>
+ * The same trie can also hold plain destinations, then matchedBy finds the
+ * ones a pattern matches by walking only the branches the pattern leads to.
+ */
+/* package */ class TopicTrie<V> {
+
+    private static final String ONE_LEVEL = "*";
+    private static final String ANY_LEVELS = "#";
+
+    private final Node<V> root = new Node<>(null, null);
+    private volatile int size = 0;
+
+    /**
+     * @return true if the destination has a wildcard level in it
+     */
+    public static boolean isPattern(String destination) {
+        for (String level : levels(destination)) {
+            if (level.equals(ONE_LEVEL) || level.equals(ANY_LEVELS)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return false if "#" is used anywhere but the last level
+     */
+    public static boolean isValidPattern(String pattern) {
+        String[] levels = levels(pattern);
+        for (int i = 0; i < levels.length - 1; i++) {
+            if (levels[i].equals(ANY_LEVELS)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public synchronized void add(String pattern, V value) {
+        Node<V> node = root;
+        for (String level : levels(pattern)) {
+            Node<V> parent = node;
+            node = parent.children.computeIfAbsent(level, key -> new Node<>(parent, key));
+        }
+        if (node.values.add(value)) {
+            size++;
+        }
+    }
+
+    public synchronized void remove(String pattern, V value) {
+        Node<V> node = root;
+        for (String level : levels(pattern)) {
+            node = node.children.get(level);
+            if (node == null) {
+                return;
+            }
+        }
+        if (node.values.remove(value)) {
+            size--;
+            // drop the branch if nothing is left under it
+            while (node.parent != null && node.values.isEmpty() && node.children.isEmpty()) {
+                node.parent.children.remove(node.level);
+                node = node.parent;
+            }
+        }
+    }
+
+    /**
+     * @return the values of every pattern matching the destination
+     */
+    public List<V> match(String destination) {
+        List<V> matches = new ArrayList<>();
+        if (size > 0) {
+            match(root, levels(destination), 0, matches);
+        }
+        return matches;
+    }
+
+    /**
+     * the other way around from match, for a trie of plain destinations
+     * @return the values of every destination the pattern matches
+     */
+    public List<V> matchedBy(String pattern) {
+        List<V> matches = new ArrayList<>();
+        if (size > 0) {
+            matchedBy(root, levels(pattern), 0, matches);
+        }
+        return matches;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * matches a single pattern, like match does for all of them
+     * @return true if the pattern matches the destination
+     */
+    public static boolean matches(String pattern, String destination) {
+        String[] patternLevels = levels(pattern);
+        String[] levels = levels(destination);
+        for (int i = 0; i < patternLevels.length; i++) {
+            if (patternLevels[i].equals(ANY_LEVELS)) {
+                return true;
+            }
+            if (i == levels.length || !(patternLevels[i].equals(ONE_LEVEL) || patternLevels[i].equals(levels[i]))) {
+                return false;
+            }
+        }
+        return patternLevels.length == levels.length;
+    }
+
+    private static <V> void match(Node<V> node, String[] levels, int index, List<V> matches) {
+        Node<V> anyLevels = node.children.get(ANY_LEVELS);
+        if (anyLevels != null) {
+            matches.addAll(anyLevels.values);
+        }
+        if (index == levels.length) {
+            matches.addAll(node.values);
+            return;
+        }
+        Node<V> exact = node.children.get(levels[index]);
+        if (exact != null) {
+            match(exact, levels, index + 1, matches);
+        }
+        Node<V> oneLevel = node.children.get(ONE_LEVEL);
+        if (oneLevel != null) {
+            match(oneLevel, levels, index + 1, matches);
+        }
+    }
+
+    private static <V> void matchedBy(Node<V> node, String[] patternLevels, int index, List<V> matches) {
+        if (index == patternLevels.length) {
+            matches.addAll(node.values);
+            return;
+        }
+        String level = patternLevels[index];
+        if (level.equals(ANY_LEVELS)) {
+            // none or any number of levels, the node and everything under it
+            addAll(node, matches);
+        } else if (level.equals(ONE_LEVEL)) {
+            for (Node<V> child : node.children.values()) {
+                matchedBy(child, patternLevels, index + 1, matches);
+            }
+        } else {
+            Node<V> exact = node.children.get(level);
+            if (exact != null) {
+                matchedBy(exact, patternLevels, index + 1, matches);
+            }
+        }
+    }
+
+    private static <V> void addAll(Node<V> node, List<V> matches) {
+        matches.addAll(node.values);
+        for (Node<V> child : node.children.values()) {
+            addAll(child, matches);
+        }
+    }
+
+    private static String[] levels(String destination) {
+        // -1 so a trailing '/' is kept as an empty level
+        return destination.split("/", -1);
+    }
+
+    private static class Node<V> {
+        final ConcurrentHashMap<String, Node<V>> children = new ConcurrentHashMap<>();
+        final Set<V> values = ConcurrentHashMap.newKeySet();
+        // only used when pruning
+        final Node<V> parent;
+        final String level;
+
+        Node(Node<V> parent, String level) {
+            this.parent = parent;
+            this.level = level;
+        }
+    }
+}
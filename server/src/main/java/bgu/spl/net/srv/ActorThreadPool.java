@@ -1,78 +1,123 @@
 package bgu.spl.net.srv;
 
-import java.util.LinkedList;
-import java.util.Map;
 import java.util.Queue;
-import java.util.Set;
-import java.util.WeakHashMap;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+/**
+ * Runs the tasks of many actors on a few threads. The tasks of one actor run
+ * one at a time and in the order they were submitted, tasks of different
+ * actors run in parallel.
+ * <p>
+ * Every actor owns a Mailbox - a lock free queue plus a scheduled flag. A
+ * submit adds the task to the mailbox and, if the mailbox was idle, hands it
+ * to the executor. There are no global maps and no locks on the way.
+ * <p>
+ * A worker that picks up a mailbox runs up to batchSize of its tasks, or as
+ * many as fit in timeSliceNanos, before putting it back at the end of the
+ * executor queue, so a chatty actor costs fewer hand-offs without starving
+ * the others. The defaults come from the system properties stomp.actor.batch
+ * (16 tasks) and stomp.actor.timeSliceMicros (1000).
+ */
 public class ActorThreadPool {
 
-    private final Map<Object, Queue<Runnable>> acts;
-    private final ReadWriteLock actsRWLock;
-    private final Set<Object> playingNow;
     private final ExecutorService threads;
+    private final int batchSize;
+    private final long timeSliceNanos;
 
     public ActorThreadPool(int threads) {
-        this.threads = Executors.newFixedThreadPool(threads);
-        acts = new WeakHashMap<>();
-        playingNow = ConcurrentHashMap.newKeySet();
-        actsRWLock = new ReentrantReadWriteLock();
+        this(threads,
+                Integer.getInteger("stomp.actor.batch", 16),
+                TimeUnit.MICROSECONDS.toNanos(Long.getLong("stomp.actor.timeSliceMicros", 1000)));
     }
 
-    public void submit(Object act, Runnable r) {
-        synchronized (act) {
-            if (!playingNow.contains(act)) {
-                playingNow.add(act);
-                execute(r, act);
-            } else {
-                pendingRunnablesOf(act).add(r);
+    /**
+     * @param threads number of worker threads
+     * @param batchSize most tasks of one actor to run before moving on to the next actor
+     * @param timeSliceNanos stop running an actor's tasks once this much time has passed
+     */
+    public ActorThreadPool(int threads, int batchSize, long timeSliceNanos) {
+        // the workers live as long as the pool, so they keep buffers of their own
+        ThreadFactory factory = Executors.defaultThreadFactory();
+        this.threads = Executors.newFixedThreadPool(threads, task -> factory.newThread(() -> {
+            BufferPool.enableThreadCache();
+            try {
+                task.run();
+            } finally {
+                BufferPool.disableThreadCache();
             }
-        }
+        }));
+        this.batchSize = Math.max(1, batchSize);
+        this.timeSliceNanos = timeSliceNanos;
+    }
+
+    public void submit(Mailbox mailbox, Runnable r) {
+        mailbox.tasks.add(r);
+        schedule(mailbox);
     }
 
     public void shutdown() {
         threads.shutdownNow();
     }
 
-    private Queue<Runnable> pendingRunnablesOf(Object act) {
-
-        actsRWLock.readLock().lock();
-        Queue<Runnable> pendingRunnables = acts.get(act);
-        actsRWLock.readLock().unlock();
-
-        if (pendingRunnables == null) {
-            actsRWLock.writeLock().lock();
-            acts.put(act, pendingRunnables = new LinkedList<>());
-            actsRWLock.writeLock().unlock();
+    // hands the mailbox to the executor unless a worker already owns it
+    private void schedule(Mailbox mailbox) {
+        if (mailbox.scheduled.compareAndSet(false, true)) {
+            execute(mailbox);
         }
-        return pendingRunnables;
     }
 
-    private void execute(Runnable r, Object act) {
-        threads.execute(() -> {
-            try {
+    private void execute(Mailbox mailbox) {
+        // only the owner of the mailbox writes it, and the executor publishes it to the worker
+        mailbox.executedAt = System.nanoTime();
+        threads.execute(() -> run(mailbox));
+    }
+
+    private void run(Mailbox mailbox) {
+        long start = System.nanoTime();
+        Metrics.ACTOR_QUEUE_WAIT.record(TimeUnit.NANOSECONDS.toMicros(start - mailbox.executedAt));
+        try {
+            Runnable r;
+            int ran = 0;
+            while (ran < batchSize && (r = mailbox.tasks.poll()) != null) {
                 r.run();
-            } finally {
-                complete(act);
+                ran++;
+                if (System.nanoTime() - start >= timeSliceNanos) {
+                    break;
+                }
             }
-        });
+        } finally {
+            complete(mailbox);
+        }
     }
 
-    private void complete(Object act) {
-        synchronized (act) {
-            Queue<Runnable> pending = pendingRunnablesOf(act);
-            if (pending.isEmpty()) {
-                playingNow.remove(act);
-            } else {
-                execute(pending.poll(), act);
-            }
+    private void complete(Mailbox mailbox) {
+        if (!mailbox.tasks.isEmpty()) {
+            // out of budget - still owned by us, so no one else could have scheduled it,
+            // and it goes to the back of the executor queue behind the other actors
+            execute(mailbox);
+            return;
+        }
+        mailbox.scheduled.set(false);
+        // a task may have been added after we saw the queue empty but before we released it
+        if (!mailbox.tasks.isEmpty()) {
+            schedule(mailbox);
         }
     }
 
+    /**
+     * The pending tasks of a single actor, kept by the actor itself.
+     * Any number of threads may submit to it, one worker at a time runs it.
+     */
+    public static class Mailbox {
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean scheduled = new AtomicBoolean(false);
+        // when the mailbox was last handed to the executor
+        private long executedAt;
+    }
+
 }
@@ -0,0 +1,108 @@
+package bgu.spl.net.srv;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Limits on the bytes waiting to be written to a single connection, and what
+ * to do with a client that does not read fast enough.
+ * <p>
+ * Once a connection has more than highWatermark bytes queued the policy kicks
+ * in, and it is lifted again when the queue drains below lowWatermark:
+ * PAUSE_READ stops reading from the client, DROP_OLDEST drops the oldest
+ * droppable frames (see ConnectionHandler.sendDroppable), DISCONNECT sends the
+ * disconnect notice and closes the connection.
+ * <p>
+ * The default instance is configured with the system properties
+ * stomp.backpressure.highWatermark (default 4m), stomp.backpressure.lowWatermark
+ * (default 1m) and stomp.backpressure.policy (default DROP_OLDEST).
+ */
+public class Backpressure {
+
+    public enum Policy {
+        PAUSE_READ, DROP_OLDEST, DISCONNECT
+    }
+
+    // how many times each policy acted, over all connections
+    private static final LongAdder PAUSES = new LongAdder();
+    private static final LongAdder RESUMES = new LongAdder();
+    private static final LongAdder DROPPED_FRAMES = new LongAdder();
+    private static final LongAdder DROPPED_BYTES = new LongAdder();
+    private static final LongAdder DISCONNECTS = new LongAdder();
+
+    private final long highWatermark;
+    private final long lowWatermark;
+    private final Policy policy;
+    private final byte[] disconnectNotice;
+
+    /**
+     * @param highWatermark queued bytes above which the policy is applied
+     * @param lowWatermark queued bytes below which the connection is back to normal
+     * @param policy what to do with a connection above the high watermark
+     * @param disconnectNotice encoded message sent before a DISCONNECT, may be null
+     */
+    public Backpressure(long highWatermark, long lowWatermark, Policy policy, byte[] disconnectNotice) {
+        if (lowWatermark > highWatermark) {
+            throw new IllegalArgumentException("low watermark " + lowWatermark + " is above the high watermark " + highWatermark);
+        }
+        this.highWatermark = highWatermark;
+        this.lowWatermark = lowWatermark;
+        this.policy = policy;
+        this.disconnectNotice = disconnectNotice;
+    }
+
+    /**
+     * @param disconnectNotice encoded message sent before a DISCONNECT, may be null
+     * @return the limits set by the stomp.backpressure.* system properties
+     */
+    public static Backpressure fromSystemProperties(byte[] disconnectNotice) {
+        return new Backpressure(
+                Long.getLong("stomp.backpressure.highWatermark", 4L << 20),
+                Long.getLong("stomp.backpressure.lowWatermark", 1L << 20),
+                Policy.valueOf(System.getProperty("stomp.backpressure.policy", Policy.DROP_OLDEST.name())),
+                disconnectNotice);
+    }
+
+    public long highWatermark() {
+        return highWatermark;
+    }
+
+    public long lowWatermark() {
+        return lowWatermark;
+    }
+
+    public Policy policy() {
+        return policy;
+    }
+
+    public byte[] disconnectNotice() {
+        return disconnectNotice;
+    }
+
+    /* package */ static void paused() {
+        PAUSES.increment();
+    }
+
+    /* package */ static void resumed() {
+        RESUMES.increment();
+    }
+
+    /* package */ static void dropped(int bytes) {
+        DROPPED_FRAMES.increment();
+        DROPPED_BYTES.add(bytes);
+    }
+
+    /* package */ static void disconnected() {
+        DISCONNECTS.increment();
+    }
+
+    /**
+     * @return a one line summary of the actions taken against slow clients
+     */
+    public static String stats() {
+        return "backpressure: pauses=" + PAUSES.sum()
+                + " resumes=" + RESUMES.sum()
+                + " droppedFrames=" + DROPPED_FRAMES.sum()
+                + " droppedBytes=" + DROPPED_BYTES.sum()
+                + " disconnects=" + DISCONNECTS.sum();
+    }
+}
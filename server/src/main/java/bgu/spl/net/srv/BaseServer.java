@@ -12,6 +12,8 @@ import java.util.function.Supplier;
 
 public abstract class BaseServer<T> implements Server<T> {
 
+    private static final int ACCEPT_BACKLOG = Integer.getInteger("stomp.acceptBacklog", 4096);
+
     private final int port;
     private final Supplier<MessagingProtocol<T>> protocolFactory;
     private final Supplier<StompMessagingProtocol<T>> stompFactory;
@@ -20,6 +22,7 @@ public abstract class BaseServer<T> implements Server<T> {
 
     private final ConnectionsImpl<T> connections = new ConnectionsImpl<>();
     private int connectionIdCounter = 0;
+    private Backpressure backpressure = Backpressure.fromSystemProperties(null);
 
     public BaseServer(
             int port,
@@ -50,7 +53,8 @@ public abstract class BaseServer<T> implements Server<T> {
     @Override
     public void serve() {
 
-        try (ServerSocket serverSock = new ServerSocket(port)) {
+        // a long backlog, so a burst of thousands of clients connecting at once is not refused
+        try (ServerSocket serverSock = new ServerSocket(port, ACCEPT_BACKLOG)) {
 			System.out.println("Server started");
 
             this.sock = serverSock; //just to be able to close
@@ -66,12 +70,13 @@ public abstract class BaseServer<T> implements Server<T> {
                     //initialize the protocol with connectionId and connections
                     protocol.start(connectionId, connections);
 
-                    handler = new BlockingConnectionHandler<>(clientSock, encdec, protocol);
+                    handler = new BlockingConnectionHandler<>(clientSock, encdec, protocol, backpressure, this::executeWriter);
                     connections.connect(connectionId, handler);
                 }
                 //else, use the regular protocol factory
                 else{
-                    handler = new BlockingConnectionHandler<>(clientSock, encdecFactory.get(), protocolFactory.get());
+                    handler = new BlockingConnectionHandler<>(clientSock, encdecFactory.get(), protocolFactory.get(), backpressure,
+                            this::executeWriter);
                 }
                 //now execute the right handler
                 execute(handler);
@@ -79,9 +84,17 @@ public abstract class BaseServer<T> implements Server<T> {
         } catch (IOException ex) {
         }
 
+        connections.shutdown();
         System.out.println("Server closed!!!");
     }
 
+    /**
+     * sets the write queue limits of the connections accepted from now on
+     */
+    public void setBackpressure(Backpressure backpressure) {
+        this.backpressure = backpressure;
+    }
+
     @Override
     public void close() throws IOException {
 		if (sock != null)
@@ -90,4 +103,12 @@ public abstract class BaseServer<T> implements Server<T> {
 
     protected abstract void execute(BlockingConnectionHandler<T>  handler);
 
+    /**
+     * runs the writer of a connection, which writes what other threads send to it. it runs until
+     * the connection closes, so it should get a thread of the same kind as execute gives the handler
+     */
+    protected void executeWriter(Runnable writer) {
+        new Thread(writer).start();
+    }
+
 }
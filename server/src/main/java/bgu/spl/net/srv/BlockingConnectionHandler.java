@@ -4,35 +4,84 @@ import bgu.spl.net.api.MessageEncoderDecoder;
 import bgu.spl.net.api.MessagingProtocol;
 import bgu.spl.net.api.StompMessagingProtocol;
 
-import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
 
+/**
+ * Serves one client on a thread of its own, which reads the client's frames
+ * and writes the replies to them itself. Everything other threads send, like
+ * the messages of the channels the client subscribed to, is only queued and
+ * written by a writer thread of the connection, started the first time it is
+ * needed. So a client that does not read only ever blocks its own threads,
+ * never the dispatch stripes or the fan-out lanes sending to everyone.
+ */
 public class BlockingConnectionHandler<T> implements Runnable, ConnectionHandler<T> {
 
+    private static final int READ_CHUNK_SIZE = 1 << 13; // 8k
+
     private final MessagingProtocol<T> protocol;
     private final StompMessagingProtocol<T> stompProtocol;
     private final MessageEncoderDecoder<T> encdec;
     private final Socket sock;
-    private BufferedInputStream in;
+    private InputStream in;
     private BufferedOutputStream out;
+    // writes the buffers that have no array to out, through a buffer of its own instead of a copy per write
+    private WritableByteChannel outChannel;
     private volatile boolean connected = true;
+    // the slow consumer notice is queued, it is the last thing written
+    private volatile boolean closing = false;
+    private final Backpressure backpressure;
+    // starts the writer, on a thread like the connection's own
+    private final Executor writers;
+    private final AtomicBoolean writerStarted = new AtomicBoolean(false);
+    // null until the writer runs
+    private volatile Thread writerThread;
+    // the connection's own thread, null until it runs
+    private volatile Thread readerThread;
+    // messages waiting for the thread that currently writes to the socket
+    private final Queue<PendingWrite> pendingWrites = new ConcurrentLinkedQueue<>();
+    private final AtomicLong waitingBytes = new AtomicLong();
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private final ReentrantLock pauseLock = new ReentrantLock();
+    private final Condition resumed = pauseLock.newCondition();
+    private volatile boolean readPaused = false;
 
-    public BlockingConnectionHandler(Socket sock, MessageEncoderDecoder<T> reader, MessagingProtocol<T> protocol) {
+    /**
+     * @param writers starts the connection's writer thread, see BaseServer.executeWriter
+     */
+    public BlockingConnectionHandler(Socket sock, MessageEncoderDecoder<T> reader, MessagingProtocol<T> protocol,
+            Backpressure backpressure, Executor writers) {
         this.sock = sock;
         this.encdec = reader;
         this.protocol = protocol;
         this.stompProtocol = null;
+        this.backpressure = backpressure;
+        this.writers = writers;
     }
 
     // override for StompMessagingProtocol
     public BlockingConnectionHandler(Socket sock, MessageEncoderDecoder<T> reader,
-            StompMessagingProtocol<T> stompProtocol) {
+            StompMessagingProtocol<T> stompProtocol, Backpressure backpressure, Executor writers) {
         this.sock = sock;
         this.encdec = reader;
         this.protocol = null;
         this.stompProtocol = stompProtocol;
+        this.backpressure = backpressure;
+        this.writers = writers;
     }
 
     @Override
@@ -40,29 +89,55 @@ public class BlockingConnectionHandler<T> implements Runnable, ConnectionHandler
         try (Socket sock = this.sock) { // just for automatic closing
 
             int read;
-            // initialize input and output streams
-            in = new BufferedInputStream(sock.getInputStream());
+            byte[] chunk = new byte[READ_CHUNK_SIZE];
+            ByteBuffer chunkView = ByteBuffer.wrap(chunk);
+            // initialize input and output streams, reads already come in whole chunks so the input is not buffered
+            in = sock.getInputStream();
             out = new BufferedOutputStream(sock.getOutputStream());
+            outChannel = Channels.newChannel(out);
+            // set once the streams are, no writer starts before. what was sent until now is written here
+            readerThread = Thread.currentThread();
+            drainPendingWrites();
             // start the protocol
-            while (!isProtocolTerminated() && connected && (read = in.read()) >= 0) {
-                // decode the next byte
-                T nextMessage = encdec.decodeNextByte((byte) read);
-                // if a complete message has been decoded
-                if (nextMessage != null) {
-                    // check which protocol to use, note we use only stomp
-                    if (stompProtocol != null) {
-                        // process the message
-                        stompProtocol.process(nextMessage);
-                    } else {
-                        //if not stomp, use the generic protocol
-                        if (protocol.process(nextMessage) != null) {
-                            send(protocol.process(nextMessage));
-                        }
-                    }
+            while (!isProtocolTerminated() && connected && awaitResume() && (read = in.read(chunk)) >= 0) {
+                // decode everything we got, every complete message is handled in order
+                Metrics.bytesIn(read);
+                chunkView.clear();
+                chunkView.limit(read);
+                if (stompProtocol != null) {
+                    stompProtocol.process(chunkView, encdec, this::isProtocolTerminated);
+                } else {
+                    encdec.decode(chunkView, this::handleMessage);
                 }
             }
+            flushPendingWrites();
         } catch (IOException ex) {
             ex.printStackTrace();
+        } finally {
+            connected = false;
+            wakeWriter();
+            // what nobody will write any more goes back to the pool
+            PendingWrite left;
+            while ((left = pendingWrites.poll()) != null) {
+                if (left.claim()) {
+                    left.release();
+                }
+            }
+            if (stompProtocol != null) {
+                stompProtocol.onClose();
+            }
+        }
+    }
+
+    private void handleMessage(T nextMessage) {
+        // messages that arrived in the same chunk after the protocol asked to terminate are dropped
+        if (isProtocolTerminated()) {
+            return;
+        }
+        // the generic protocol, stomp protocols decode their own messages
+        T response = protocol.process(nextMessage);
+        if (response != null) {
+            send(response);
         }
     }
     private boolean isProtocolTerminated() {    
@@ -77,21 +152,296 @@ public class BlockingConnectionHandler<T> implements Runnable, ConnectionHandler
     public void close() throws IOException {
         connected = false;
         sock.close();
+        // the writer stops too
+        wakeWriter();
+        // wake the reading loop if it is paused, so it notices we are closed
+        pauseLock.lock();
+        try {
+            resumed.signalAll();
+        } finally {
+            pauseLock.unlock();
+        }
     }
 
     @Override
     public void send(T msg) {
-        // encode the message and write it to the output stream
+        write(msg, false);
+    }
+
+    @Override
+    public void sendDroppable(T msg) {
+        write(msg, true);
+    }
+
+    @Override
+    public void sendEncoded(boolean droppable, ByteBuffer... parts) {
+        PendingWrite pending = new PendingWrite(parts, droppable, false);
+        if (connected && !closing) {
+            enqueue(pending);
+        } else {
+            pending.release();
+        }
+    }
+
+    /**
+     * queues the message and has it written, see flush
+     */
+    private void write(T msg, boolean droppable) {
+        if (msg == null || !connected || closing) {
+            return;
+        }
+        enqueue(new PendingWrite(new ByteBuffer[] {ByteBuffer.wrap(encdec.encode(msg))}, droppable, false));
+    }
+
+    private void enqueue(PendingWrite pending) {
+        long waiting = waitingBytes.addAndGet(pending.size);
+        pendingWrites.add(pending);
+        Metrics.WRITE_QUEUE_BYTES.record(waiting);
+        if (waiting > backpressure.highWatermark()) {
+            onHighWatermark();
+        }
+        flush();
+    }
+
+    // the connection's own thread writes the queue unless the writer already does. any other
+    // thread only wakes the writer, so it never blocks on a client that does not read
+    private void flush() {
+        Thread reader = readerThread;
+        if (reader == null) {
+            // not running yet, run writes it
+            return;
+        }
+        if (Thread.currentThread() == reader) {
+            drainPendingWrites();
+        } else if (writerThread != null) {
+            wakeWriter();
+        } else if (writerStarted.compareAndSet(false, true)) {
+            writers.execute(this::writeLoop);
+        }
+    }
+
+    private void wakeWriter() {
+        Thread writer = writerThread;
+        if (writer != null) {
+            LockSupport.unpark(writer);
+        }
+    }
+
+    // runs on the writer thread until the connection closes
+    private void writeLoop() {
+        writerThread = Thread.currentThread();
+        // whatever was queued before writerThread was set is seen here, without being woken
+        while (connected) {
+            if (pendingWrites.isEmpty()) {
+                LockSupport.park(this);
+                continue;
+            }
+            writeLock.lock();
+            try {
+                writePendingWrites();
+            } catch (IOException e) {
+                if (connected) {
+                    e.printStackTrace();
+                    disconnect();
+                }
+                return;
+            } finally {
+                writeLock.unlock();
+            }
+            resumeIfDrained();
+        }
+    }
+
+    private void drainPendingWrites() {
+        // re-check after unlocking, a sender may have queued while we were finishing
+        while (!pendingWrites.isEmpty() && connected && writeLock.tryLock()) {
+            try {
+                writePendingWrites();
+            } catch (IOException e) {
+                e.printStackTrace();
+            } finally {
+                writeLock.unlock();
+            }
+            resumeIfDrained();
+        }
+    }
+
+    // waits for the current writer, so replies like the DISCONNECT receipt are out before we close
+    private void flushPendingWrites() throws IOException {
+        writeLock.lock();
+        try {
+            writePendingWrites();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    // called with the write lock held
+    private void writePendingWrites() throws IOException {
+        PendingWrite next;
+        while ((next = pendingWrites.poll()) != null) {
+            if (!next.claim()) {
+                // dropped by a sender, which released it
+                continue;
+            }
+            if (next.last) {
+                writeLast(next);
+                return;
+            }
+            waitingBytes.addAndGet(-next.size);
+            Metrics.bytesOut(next.size);
+            for (ByteBuffer part : next.parts) {
+                if (part.hasArray()) {
+                    out.write(part.array(), part.arrayOffset() + part.position(), part.remaining());
+                } else {
+                    // a direct or read only buffer. the parts are not ours to move, so a view is written
+                    ByteBuffer view = part.duplicate();
+                    while (view.hasRemaining()) {
+                        outChannel.write(view);
+                    }
+                }
+            }
+            next.release();
+        }
+        out.flush();
+    }
+
+    // the slow consumer notice, the connection closes once it is out
+    private void writeLast(PendingWrite notice) throws IOException {
         try {
-            if (msg != null) {
-                // synchronized to avoid collisions in messages
-                synchronized (this) {
-                    out.write(encdec.encode(msg));
-                    out.flush();
+            out.write(notice.parts[0].array());
+            out.flush();
+        } finally {
+            close();
+        }
+    }
+
+    // the client does not keep up with what we send it, apply the slow consumer policy
+    private void onHighWatermark() {
+        switch (backpressure.policy()) {
+            case PAUSE_READ:
+                if (!readPaused) {
+                    readPaused = true;
+                    Backpressure.paused();
+                }
+                break;
+            case DROP_OLDEST:
+                Iterator<PendingWrite> it = pendingWrites.iterator();
+                while (waitingBytes.get() > backpressure.lowWatermark() && it.hasNext()) {
+                    PendingWrite next = it.next();
+                    // the claim fails if the writer or another sender took it first. the iterator
+                    // unlinks it where it is, instead of searching the queue for it again
+                    if (next.droppable && next.claim()) {
+                        it.remove();
+                        waitingBytes.addAndGet(-next.size);
+                        Backpressure.dropped(next.size);
+                        next.release();
+                    }
                 }
+                break;
+            case DISCONNECT:
+                disconnectSlowConsumer();
+                break;
+        }
+    }
+
+    private void disconnectSlowConsumer() {
+        if (!connected || closing) {
+            return;
+        }
+        closing = true;
+        Backpressure.disconnected();
+        PendingWrite dropped;
+        while ((dropped = pendingWrites.poll()) != null) {
+            if (dropped.claim()) {
+                waitingBytes.addAndGet(-dropped.size);
+                dropped.release();
             }
+        }
+        // the notice only gets through if no writer is stuck on the socket. it is written like
+        // everything else, so the sender that found the client too slow does not block on it either
+        byte[] notice = backpressure.disconnectNotice();
+        if (notice != null && !writeLock.isLocked()) {
+            pendingWrites.add(new PendingWrite(new ByteBuffer[] {ByteBuffer.wrap(notice)}, false, true));
+            return;
+        }
+        // closing the socket also releases a writer blocked on it
+        disconnect();
+    }
+
+    private void disconnect() {
+        try {
+            close();
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
+
+    private void resumeIfDrained() {
+        if (readPaused && waitingBytes.get() <= backpressure.lowWatermark()) {
+            pauseLock.lock();
+            try {
+                if (readPaused) {
+                    readPaused = false;
+                    Backpressure.resumed();
+                    resumed.signalAll();
+                }
+            } finally {
+                pauseLock.unlock();
+            }
+        }
+    }
+
+    // blocks the reading loop while the client is paused, returns false if we were interrupted
+    private boolean awaitResume() {
+        if (!readPaused) {
+            return true;
+        }
+        pauseLock.lock();
+        try {
+            while (readPaused && connected) {
+                resumed.await();
+            }
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            pauseLock.unlock();
+        }
+    }
+
+    private static class PendingWrite {
+        final ByteBuffer[] parts;
+        final int size;
+        // may be dropped by the DROP_OLDEST policy
+        final boolean droppable;
+        // the slow consumer notice, the connection closes after it
+        final boolean last;
+        // set by whoever takes the write out of the queue, the writer or a sender dropping it
+        private final AtomicBoolean claimed = new AtomicBoolean(false);
+
+        PendingWrite(ByteBuffer[] parts, boolean droppable, boolean last) {
+            this.parts = parts;
+            this.droppable = droppable;
+            this.last = last;
+            int size = 0;
+            for (ByteBuffer part : parts) {
+                size += part.remaining();
+            }
+            this.size = size;
+        }
+
+        // true for the one caller that may write or drop it
+        boolean claim() {
+            return claimed.compareAndSet(false, true);
+        }
+
+        // parts leased from the pool go back once written or dropped, the rest are ignored
+        void release() {
+            for (ByteBuffer part : parts) {
+                BufferPool.release(part);
+            }
+        }
+    }
 }
@@ -0,0 +1,253 @@
+package bgu.spl.net.srv;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bounded pool of direct buffers in a few size classes, shared by all the
+ * connection handlers for both reading and writing.
+ * <p>
+ * The long lived threads (selectors and pool workers, see enableThreadCache)
+ * keep a small cache per size class in front of the shared free lists. Other
+ * threads, like the thread or virtual thread of every connection in the
+ * thread per client server, go to the shared lists, a cache would be lost
+ * with its thread and its buffers counted as allocated forever.
+ * <p>
+ * The total direct memory the pool creates is capped, once the cap is
+ * reached leases fall back to plain heap buffers that are never pooled. Free
+ * buffers beyond the idle limit are dropped on release so the pool shrinks
+ * back after a spike.
+ * <p>
+ * Configured with system properties:
+ * stomp.pool.maxBytes (cap on direct memory, default 256m),
+ * stomp.pool.maxIdleBytes (free memory kept in the shared lists, default 64m),
+ * stomp.pool.threadCache (buffers cached per thread and size class, default 16),
+ * stomp.pool.debug (track every lease and report the ones never released).
+ */
+public final class BufferPool {
+
+    // 512, 2k, 8k, 32k, 128k
+    private static final int[] SIZE_CLASSES = {1 << 9, 1 << 11, 1 << 13, 1 << 15, 1 << 17};
+
+    private static final long MAX_BYTES = Long.getLong("stomp.pool.maxBytes", 256L << 20);
+    private static final long MAX_IDLE_BYTES = Long.getLong("stomp.pool.maxIdleBytes", 64L << 20);
+    private static final int THREAD_CACHE_SIZE = Integer.getInteger("stomp.pool.threadCache", 16);
+    private static final boolean DEBUG = Boolean.getBoolean("stomp.pool.debug");
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static final ConcurrentLinkedQueue<ByteBuffer>[] FREE_LISTS = new ConcurrentLinkedQueue[SIZE_CLASSES.length];
+    private static final AtomicInteger[] FREE_COUNTS = new AtomicInteger[SIZE_CLASSES.length];
+
+    // null for the threads that did not enable their cache
+    private static final ThreadLocal<ArrayDeque<ByteBuffer>[]> THREAD_CACHES = new ThreadLocal<>();
+
+    // direct memory created by the pool and not dropped yet, and the part of it currently leased
+    private static final AtomicLong ALLOCATED_BYTES = new AtomicLong();
+    private static final AtomicLong LEASED_BYTES = new AtomicLong();
+    private static final AtomicLong IDLE_BYTES = new AtomicLong();
+    private static final LongAdder LEASES = new LongAdder();
+    private static final LongAdder THREAD_CACHE_HITS = new LongAdder();
+    private static final LongAdder SHARED_HITS = new LongAdder();
+    private static final LongAdder ALLOCATIONS = new LongAdder();
+    private static final LongAdder HEAP_FALLBACKS = new LongAdder();
+    private static final LongAdder DROPPED = new LongAdder();
+
+    // debug mode only - every leased buffer and where it was leased
+    private static final Map<ByteBuffer, Throwable> OUTSTANDING = Collections.synchronizedMap(new IdentityHashMap<>());
+
+    static {
+        for (int i = 0; i < SIZE_CLASSES.length; i++) {
+            FREE_LISTS[i] = new ConcurrentLinkedQueue<>();
+            FREE_COUNTS[i] = new AtomicInteger();
+        }
+    }
+
+    private BufferPool() {
+    }
+
+    /**
+     * gives the calling thread its own cache of buffers, for threads that run as long as the server.
+     * call disableThreadCache before the thread ends
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public static void enableThreadCache() {
+        if (THREAD_CACHE_SIZE <= 0 || THREAD_CACHES.get() != null) {
+            return;
+        }
+        ArrayDeque<ByteBuffer>[] caches = new ArrayDeque[SIZE_CLASSES.length];
+        for (int i = 0; i < caches.length; i++) {
+            caches[i] = new ArrayDeque<>(THREAD_CACHE_SIZE);
+        }
+        THREAD_CACHES.set(caches);
+    }
+
+    /**
+     * hands the calling thread's cached buffers to the shared lists, or lets them go
+     */
+    public static void disableThreadCache() {
+        ArrayDeque<ByteBuffer>[] caches = THREAD_CACHES.get();
+        if (caches == null) {
+            return;
+        }
+        THREAD_CACHES.remove();
+        for (int sizeClass = 0; sizeClass < caches.length; sizeClass++) {
+            ByteBuffer buff;
+            while ((buff = caches[sizeClass].poll()) != null) {
+                free(buff, sizeClass);
+            }
+        }
+    }
+
+    /**
+     * @param size the number of bytes needed
+     * @return a cleared buffer with at least size bytes of capacity, release it when done
+     */
+    public static ByteBuffer lease(int size) {
+        LEASES.increment();
+        int sizeClass = sizeClassOf(size);
+        if (sizeClass < 0) {
+            // bigger than our largest class, not worth pooling
+            HEAP_FALLBACKS.increment();
+            return ByteBuffer.allocate(size);
+        }
+
+        ArrayDeque<ByteBuffer>[] caches = THREAD_CACHES.get();
+        ByteBuffer buff = caches != null ? caches[sizeClass].pollLast() : null;
+        if (buff != null) {
+            THREAD_CACHE_HITS.increment();
+        } else {
+            buff = FREE_LISTS[sizeClass].poll();
+            if (buff != null) {
+                FREE_COUNTS[sizeClass].decrementAndGet();
+                IDLE_BYTES.addAndGet(-buff.capacity());
+                SHARED_HITS.increment();
+            } else {
+                buff = allocate(sizeClass);
+                if (buff == null) {
+                    HEAP_FALLBACKS.increment();
+                    return ByteBuffer.allocate(size);
+                }
+            }
+        }
+
+        buff.clear();
+        LEASED_BYTES.addAndGet(buff.capacity());
+        if (DEBUG) {
+            OUTSTANDING.put(buff, new Throwable("leased here"));
+        }
+        return buff;
+    }
+
+    /**
+     * gives a buffer back to the pool. buffers the pool did not create (heap or
+     * read-only buffers) are ignored, so callers can release whatever they wrote.
+     */
+    public static void release(ByteBuffer buff) {
+        if (buff == null || !buff.isDirect() || buff.isReadOnly()) {
+            return;
+        }
+        int sizeClass = exactSizeClassOf(buff.capacity());
+        if (sizeClass < 0) {
+            return;
+        }
+        if (DEBUG && OUTSTANDING.remove(buff) == null) {
+            new IllegalStateException("buffer released twice or not leased from the pool").printStackTrace();
+            return;
+        }
+        LEASED_BYTES.addAndGet(-buff.capacity());
+
+        ArrayDeque<ByteBuffer>[] caches = THREAD_CACHES.get();
+        if (caches != null && caches[sizeClass].size() < THREAD_CACHE_SIZE) {
+            caches[sizeClass].addLast(buff);
+        } else {
+            free(buff, sizeClass);
+        }
+    }
+
+    // to the shared list of its size class, unless there is enough idle memory there already
+    private static void free(ByteBuffer buff, int sizeClass) {
+        if (IDLE_BYTES.get() + buff.capacity() <= MAX_IDLE_BYTES) {
+            IDLE_BYTES.addAndGet(buff.capacity());
+            FREE_COUNTS[sizeClass].incrementAndGet();
+            FREE_LISTS[sizeClass].add(buff);
+        } else {
+            // the pool is already holding enough idle memory, let the GC free this one
+            ALLOCATED_BYTES.addAndGet(-buff.capacity());
+            DROPPED.increment();
+        }
+    }
+
+    /**
+     * @return a one line summary of the pool usage
+     */
+    public static String stats() {
+        return "buffer pool: leases=" + LEASES.sum()
+                + " threadCacheHits=" + THREAD_CACHE_HITS.sum()
+                + " sharedHits=" + SHARED_HITS.sum()
+                + " allocations=" + ALLOCATIONS.sum()
+                + " heapFallbacks=" + HEAP_FALLBACKS.sum()
+                + " dropped=" + DROPPED.sum()
+                + " allocatedBytes=" + ALLOCATED_BYTES.get()
+                + " leasedBytes=" + LEASED_BYTES.get()
+                + " idleBytes=" + IDLE_BYTES.get();
+    }
+
+    public static long allocatedBytes() {
+        return ALLOCATED_BYTES.get();
+    }
+
+    public static long leasedBytes() {
+        return LEASED_BYTES.get();
+    }
+
+    /**
+     * in debug mode, prints where every buffer that is still leased was leased
+     */
+    public static void reportLeaks() {
+        if (!DEBUG) {
+            return;
+        }
+        synchronized (OUTSTANDING) {
+            if (!OUTSTANDING.isEmpty()) {
+                System.err.println(OUTSTANDING.size() + " pooled buffers were never released");
+                for (Throwable leasedAt : OUTSTANDING.values()) {
+                    leasedAt.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private static ByteBuffer allocate(int sizeClass) {
+        int capacity = SIZE_CLASSES[sizeClass];
+        long allocated;
+        do {
+            allocated = ALLOCATED_BYTES.get();
+            if (allocated + capacity > MAX_BYTES) {
+                return null;
+            }
+        } while (!ALLOCATED_BYTES.compareAndSet(allocated, allocated + capacity));
+        ALLOCATIONS.increment();
+        return ByteBuffer.allocateDirect(capacity);
+    }
+
+    private static int sizeClassOf(int size) {
+        for (int i = 0; i < SIZE_CLASSES.length; i++) {
+            if (size <= SIZE_CLASSES[i]) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int exactSizeClassOf(int capacity) {
+        int sizeClass = sizeClassOf(capacity);
+        return sizeClass >= 0 && SIZE_CLASSES[sizeClass] == capacity ? sizeClass : -1;
+    }
+}
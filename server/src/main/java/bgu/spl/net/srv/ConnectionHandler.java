@@ -6,6 +6,7 @@
 package bgu.spl.net.srv;
 
 import java.io.Closeable;
+import java.nio.ByteBuffer;
 
 /**
  * The ConnectionHandler interface for Message of type T
@@ -19,4 +20,39 @@ public interface ConnectionHandler<T> extends Closeable {
 
     void send(T msg);
 
+    /**
+     * sends a message the connection may drop if the client does not keep up
+     * with it (see Backpressure), e.g. a MESSAGE fanned out to a channel.
+     * replies the client is waiting for should go through send.
+     */
+    default void sendDroppable(T msg) {
+        send(msg);
+    }
+
+    /**
+     * sends a message that is already encoded, made of the given parts in order.
+     * this lets many connections share the bytes of one message, so the parts
+     * must not be changed by the caller afterwards. shared buffers should be
+     * passed as read only views, since the handler moves their positions. the parts
+     * may also hold several whole messages, they are then queued and dropped
+     * together.
+     *
+     * @param droppable true if the message may be dropped like in sendDroppable
+     * @param parts the encoded message
+     */
+    void sendEncoded(boolean droppable, ByteBuffer... parts);
+
+    /**
+     * like a droppable sendEncoded, but if an earlier message with the same key
+     * is still waiting to be written it is replaced by this one, in its place.
+     * for messages where only the latest value matters. handlers that do not
+     * queue messages simply send it.
+     *
+     * @param key the conflation key, compared with equals
+     * @param parts the encoded message
+     */
+    default void sendConflated(Object key, ByteBuffer... parts) {
+        sendEncoded(true, parts);
+    }
+
 }
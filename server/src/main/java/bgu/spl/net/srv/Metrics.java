@@ -0,0 +1,193 @@
+package bgu.spl.net.srv;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+/**
+ * Counters and histograms of the whole server. Recording only touches
+ * LongAdders, so it is left on all the time.
+ * <p>
+ * The server wide numbers are published over JMX as bgu.spl.net:type=Server,
+ * other components register their own beans with register().
+ */
+public final class Metrics {
+
+    private static final ConcurrentHashMap<String, LongAdder> FRAMES_IN = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, LongAdder> FRAMES_OUT = new ConcurrentHashMap<>();
+    private static final LongAdder BYTES_IN = new LongAdder();
+    private static final LongAdder BYTES_OUT = new LongAdder();
+
+    // from the time a channel message is sent until it is queued for all its subscribers, in micros
+    public static final Histogram FANOUT_LATENCY = new Histogram();
+    // from the time an actor is handed to the executor until a worker runs it, in micros
+    public static final Histogram ACTOR_QUEUE_WAIT = new Histogram();
+    // the work a selector does for one wakeup, not counting the wait, in micros
+    public static final Histogram SELECTOR_LOOP = new Histogram();
+    // bytes waiting to be written to a connection, every time a message is queued
+    public static final Histogram WRITE_QUEUE_BYTES = new Histogram();
+
+    static {
+        register("bgu.spl.net:type=Server", new ServerBean(), ServerMXBean.class);
+    }
+
+    private Metrics() {
+    }
+
+    /**
+     * the JMX view of the server wide numbers
+     */
+    public interface ServerMXBean {
+        Map<String, Long> getFramesIn();
+
+        Map<String, Long> getFramesOut();
+
+        long getBytesIn();
+
+        long getBytesOut();
+
+        String getFanOutLatencyMicros();
+
+        String getActorQueueWaitMicros();
+
+        String getSelectorLoopMicros();
+
+        String getWriteQueueBytes();
+
+        String getBufferPool();
+
+        String getBackpressure();
+    }
+
+    /**
+     * @return the counter of frames received with the given command, keep it instead of looking it up every time
+     */
+    public static LongAdder framesIn(String command) {
+        return FRAMES_IN.computeIfAbsent(command, key -> new LongAdder());
+    }
+
+    /**
+     * @return the counter of frames sent with the given command, keep it instead of looking it up every time
+     */
+    public static LongAdder framesOut(String command) {
+        return FRAMES_OUT.computeIfAbsent(command, key -> new LongAdder());
+    }
+
+    public static void bytesIn(long bytes) {
+        BYTES_IN.add(bytes);
+    }
+
+    public static void bytesOut(long bytes) {
+        BYTES_OUT.add(bytes);
+    }
+
+    /**
+     * registers a JMX bean, errors are printed and otherwise ignored
+     */
+    public static <I> void register(String name, I bean, Class<I> mxBeanInterface) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new StandardMBean(bean, mxBeanInterface, true), new ObjectName(name));
+        } catch (JMException ex) {
+            ex.printStackTrace();
+        }
+    }
+
+    /**
+     * unregisters a JMX bean registered with register(), errors are printed and otherwise ignored
+     */
+    public static void unregister(String name) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(new ObjectName(name));
+        } catch (JMException ex) {
+            ex.printStackTrace();
+        }
+    }
+
+    /**
+     * @return every number as "name:value" lines
+     */
+    public static String report() {
+        StringBuilder report = new StringBuilder();
+        for (Map.Entry<String, Long> entry : sums(FRAMES_IN).entrySet()) {
+            report.append("frames-in.").append(entry.getKey()).append(':').append(entry.getValue()).append('\n');
+        }
+        for (Map.Entry<String, Long> entry : sums(FRAMES_OUT).entrySet()) {
+            report.append("frames-out.").append(entry.getKey()).append(':').append(entry.getValue()).append('\n');
+        }
+        report.append("bytes-in:").append(BYTES_IN.sum()).append('\n')
+                .append("bytes-out:").append(BYTES_OUT.sum()).append('\n')
+                .append("fanout-latency-us:").append(FANOUT_LATENCY.summary()).append('\n')
+                .append("actor-queue-wait-us:").append(ACTOR_QUEUE_WAIT.summary()).append('\n')
+                .append("selector-loop-us:").append(SELECTOR_LOOP.summary()).append('\n')
+                .append("write-queue-bytes:").append(WRITE_QUEUE_BYTES.summary()).append('\n')
+                .append(BufferPool.stats()).append('\n')
+                .append(Backpressure.stats()).append('\n');
+        return report.toString();
+    }
+
+    private static Map<String, Long> sums(Map<String, LongAdder> counters) {
+        Map<String, Long> sums = new TreeMap<>();
+        for (Map.Entry<String, LongAdder> entry : counters.entrySet()) {
+            sums.put(entry.getKey(), entry.getValue().sum());
+        }
+        return sums;
+    }
+
+    private static class ServerBean implements ServerMXBean {
+        @Override
+        public Map<String, Long> getFramesIn() {
+            return sums(FRAMES_IN);
+        }
+
+        @Override
+        public Map<String, Long> getFramesOut() {
+            return sums(FRAMES_OUT);
+        }
+
+        @Override
+        public long getBytesIn() {
+            return BYTES_IN.sum();
+        }
+
+        @Override
+        public long getBytesOut() {
+            return BYTES_OUT.sum();
+        }
+
+        @Override
+        public String getFanOutLatencyMicros() {
+            return FANOUT_LATENCY.summary();
+        }
+
+        @Override
+        public String getActorQueueWaitMicros() {
+            return ACTOR_QUEUE_WAIT.summary();
+        }
+
+        @Override
+        public String getSelectorLoopMicros() {
+            return SELECTOR_LOOP.summary();
+        }
+
+        @Override
+        public String getWriteQueueBytes() {
+            return WRITE_QUEUE_BYTES.summary();
+        }
+
+        @Override
+        public String getBufferPool() {
+            return BufferPool.stats();
+        }
+
+        @Override
+        public String getBackpressure() {
+            return Backpressure.stats();
+        }
+    }
+}
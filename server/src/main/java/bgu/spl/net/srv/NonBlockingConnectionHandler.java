@@ -8,45 +8,79 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.Iterator;
 import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
 public class NonBlockingConnectionHandler<T> implements ConnectionHandler<T> {
 
-    private static final int BUFFER_ALLOCATION_SIZE = 1 << 13; // 8k
-    private static final ConcurrentLinkedQueue<ByteBuffer> BUFFER_POOL = new ConcurrentLinkedQueue<>();
+    private static final int READ_BUFFER_SIZE = 1 << 13; // 8k
+    private static final int COALESCE_BUFFER_SIZE = 1 << 13; // 8k
+    private static final int MAX_GATHER_FRAMES = 64;
+    private static final int MAX_GATHER_BYTES = 1 << 18; // 256k
+    private static final int SMALL_FRAME_SIZE = 1 << 10; // 1k, smaller frames are coalesced
+    // counters of the gathering writes, shared by all connections
+    private static final LongAdder FRAMES_WRITTEN = new LongAdder();
+    private static final LongAdder WRITE_CALLS = new LongAdder();
 
     private final MessagingProtocol<T> protocol;
     private final StompMessagingProtocol<T> stompProtocol;
     private final MessageEncoderDecoder<T> encdec;
-    private final Queue<ByteBuffer> writeQueue = new ConcurrentLinkedQueue<>();
+    private final Queue<QueuedFrame> writeQueue = new ConcurrentLinkedQueue<>();
+    // the conflated frames still in writeQueue, by conflation key
+    private final ConcurrentHashMap<Object, QueuedFrame> conflated = new ConcurrentHashMap<>();
     private final SocketChannel chan;
-    private final Reactor reactor;
+    private final SubReactor<T> reactor;
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+    private final Backpressure backpressure;
+    // bytes waiting in writeQueue, not counting the batch being written
+    private final AtomicLong queuedBytes = new AtomicLong();
+    private volatile boolean readPaused = false;
+    private volatile boolean closeAfterWrite = false;
+    // the reads of this connection are processed one at a time, in order
+    private final ActorThreadPool.Mailbox mailbox = new ActorThreadPool.Mailbox();
+    // the gathering write in progress, only touched by the selector thread
+    private ByteBuffer[] batch = new ByteBuffer[MAX_GATHER_FRAMES];
+    private int batchStart = 0;
+    private int batchEnd = 0;
+    private int batchFrames = 0;
+    private ByteBuffer coalesceBuffer = null;
 
     public NonBlockingConnectionHandler(MessageEncoderDecoder<T> reader, MessagingProtocol<T> protocol,
-            SocketChannel chan, Reactor reactor) {
+            SocketChannel chan, SubReactor<T> reactor, Backpressure backpressure) {
         this.chan = chan;
         this.encdec = reader;
         this.protocol = protocol;
         this.stompProtocol = null;
         this.reactor = reactor;
+        this.backpressure = backpressure;
     }
 
     public NonBlockingConnectionHandler(MessageEncoderDecoder<T> reader, StompMessagingProtocol<T> stompProtocol,
-            SocketChannel chan, Reactor reactor) {
+            SocketChannel chan, SubReactor<T> reactor, Backpressure backpressure) {
         this.chan = chan;
         this.encdec = reader;
         this.protocol = null;
         this.stompProtocol = stompProtocol;
         this.reactor = reactor;
+        this.backpressure = backpressure;
     }
 
     public Runnable continueRead() {
-        ByteBuffer buf = leaseBuffer();
+        ByteBuffer buf = BufferPool.lease(READ_BUFFER_SIZE);
 
         boolean success = false;
         try {
-            success = chan.read(buf) != -1;
+            int read = chan.read(buf);
+            success = read != -1;
+            if (success) {
+                Metrics.bytesIn(read);
+            }
         } catch (IOException ex) {
             ex.printStackTrace();
         }
@@ -55,44 +89,72 @@ public class NonBlockingConnectionHandler<T> implements ConnectionHandler<T> {
             buf.flip();
             return () -> {
                 try {
-                    while (buf.hasRemaining()) {
-                        T nextMessage = encdec.decodeNextByte(buf.get());
-                        if (nextMessage != null) {
-                            if (stompProtocol != null) {
-                                stompProtocol.process(nextMessage);
-                            } else {
-                                if (protocol.process(nextMessage) != null) {
-                                    writeQueue.add(ByteBuffer.wrap(encdec.encode(protocol.process(nextMessage))));
-                                    reactor.updateInterestedOps(chan, SelectionKey.OP_READ | SelectionKey.OP_WRITE);
-                                }
-                            }
-                        }
+                    // decode the whole chunk at once, every completed message goes to the protocol.
+                    // messages that arrived in the same chunk after the protocol asked to terminate are dropped
+                    if (stompProtocol != null) {
+                        stompProtocol.process(buf, encdec, this::shouldTerminate);
+                    } else {
+                        encdec.decode(buf, this::handleMessage);
                     }
                 } finally {
-                    releaseBuffer(buf);
+                    BufferPool.release(buf);
                 }
             };
         } else {
-            releaseBuffer(buf);
+            BufferPool.release(buf);
             close();
             return null;
         }
 
     }
 
+    private void handleMessage(T nextMessage) {
+        if (shouldTerminate()) {
+            return;
+        }
+        T response = protocol.process(nextMessage);
+        if (response != null) {
+            send(response);
+        }
+    }
+
     public void close() {
         try {
             chan.close();
+            // the selector and worker threads may both close us, count it only once
+            if (closed.compareAndSet(false, true)) {
+                reactor.connectionClosed();
+                // give back the frames that will never be written
+                QueuedFrame pending;
+                while ((pending = writeQueue.poll()) != null) {
+                    if (claim(pending)) {
+                        pending.release();
+                    }
+                }
+                // the batch belongs to the selector thread, which may be in the middle of writing it
+                reactor.execute(this::releaseBatch);
+                if (stompProtocol != null) {
+                    // the protocol belongs to the connection's actor, which may be processing a read now
+                    reactor.submit(this, stompProtocol::onClose);
+                }
+            }
         } catch (IOException ex) {
             ex.printStackTrace();
         }
     }
 
+    /* package */ ActorThreadPool.Mailbox mailbox() {
+        return mailbox;
+    }
+
     public boolean isClosed() {
         return !chan.isOpen();
     }
 
     private boolean shouldTerminate() {
+        if (closeAfterWrite) {
+            return true;
+        }
         if (stompProtocol != null) {
             return stompProtocol.shouldTerminate();
         } else {
@@ -101,51 +163,354 @@ public class NonBlockingConnectionHandler<T> implements ConnectionHandler<T> {
     }
 
     public void continueWrite() {
-        while (!writeQueue.isEmpty()) {
-            try {
-                ByteBuffer top = writeQueue.peek();
-                chan.write(top);
-                if (top.hasRemaining()) {
-                    return;
-                } else {
-                    writeQueue.remove();
+        try {
+            // keep writing batches until the queue is drained or the socket is full
+            while (batchStart < batchEnd || fillBatch()) {
+                Metrics.bytesOut(chan.write(batch, batchStart, batchEnd - batchStart));
+                WRITE_CALLS.increment();
+                while (batchStart < batchEnd && !batch[batchStart].hasRemaining()) {
+                    batchStart++;
                 }
-            } catch (IOException ex) {
-                ex.printStackTrace();
-                close();
+                if (batchStart < batchEnd) {
+                    if (closeAfterWrite) {
+                        // a slow consumer we are disconnecting, do not wait for it to read the notice
+                        close();
+                    }
+                    return; // the socket is full, we will get OP_WRITE when it drains
+                }
+                finishBatch();
+                resumeIfDrained();
             }
+        } catch (IOException ex) {
+            ex.printStackTrace();
+            close();
+            return;
         }
 
         if (writeQueue.isEmpty()) {
             if (shouldTerminate())
                 close();
             else
-                reactor.updateInterestedOps(chan, SelectionKey.OP_READ);
+                reactor.updateInterestedOps(chan, readOps());
+        }
+    }
+
+    /**
+     * moves frames from the write queue into the next gathering write, bounded by
+     * MAX_GATHER_FRAMES and MAX_GATHER_BYTES. consecutive small frames are copied
+     * into a single pooled direct buffer instead of taking a slot each.
+     *
+     * @return true if the batch is not empty
+     */
+    private boolean fillBatch() {
+        batchStart = 0;
+        batchEnd = 0;
+        batchFrames = 0;
+        int batchBytes = 0;
+        QueuedFrame frame;
+        while (batchBytes < MAX_GATHER_BYTES && (frame = writeQueue.peek()) != null) {
+            int added;
+            // a newer frame with the same key may replace the content until we take it
+            synchronized (frame) {
+                added = addToBatch(frame);
+            }
+            if (added < 0) {
+                break;
+            }
+            batchBytes += added;
+        }
+        if (coalesceBuffer != null) {
+            coalesceBuffer.flip();
         }
+        return batchEnd > 0;
     }
 
-    private static ByteBuffer leaseBuffer() {
-        ByteBuffer buff = BUFFER_POOL.poll();
-        if (buff == null) {
-            return ByteBuffer.allocateDirect(BUFFER_ALLOCATION_SIZE);
+    /**
+     * called holding the frame's lock
+     * @return the bytes added, 0 if the frame is no longer queued, -1 if there is no room for it
+     */
+    private int addToBatch(QueuedFrame frame) {
+        boolean coalesce = frame.size <= SMALL_FRAME_SIZE;
+        if (coalesce) {
+            // small frames can only join the coalescing buffer while it is the last entry, to keep the order
+            if (coalesceBuffer == null ? batchEnd == batch.length
+                    : batch[batchEnd - 1] != coalesceBuffer || coalesceBuffer.remaining() < frame.size) {
+                return -1;
+            }
+        } else if (batchEnd + frame.parts.length > batch.length) {
+            if (batchEnd > 0) {
+                return -1;
+            }
+            // a single frame with more parts than a batch holds
+            batch = Arrays.copyOf(batch, frame.parts.length);
+        }
+        // a slow consumer policy may have dropped the frame since we peeked it, then it is only unlinked here
+        boolean claimed = claim(frame);
+        writeQueue.remove(frame);
+        if (!claimed) {
+            return 0;
+        }
+        queuedBytes.addAndGet(-frame.size);
+        if (coalesce) {
+            if (coalesceBuffer == null) {
+                coalesceBuffer = BufferPool.lease(COALESCE_BUFFER_SIZE);
+                batch[batchEnd++] = coalesceBuffer;
+            }
+            for (ByteBuffer part : frame.parts) {
+                coalesceBuffer.put(part);
+            }
+            frame.release();
+        } else {
+            for (ByteBuffer part : frame.parts) {
+                batch[batchEnd++] = part;
+            }
+        }
+        batchFrames++;
+        return frame.size;
+    }
+
+    private void finishBatch() {
+        FRAMES_WRITTEN.add(batchFrames);
+        releaseBatch();
+    }
+
+    // gives back the buffers of the batch, including the coalescing buffer, on the selector thread
+    private void releaseBatch() {
+        for (int i = 0; i < batchEnd; i++) {
+            BufferPool.release(batch[i]);
+            batch[i] = null;
         }
+        batchStart = 0;
+        batchEnd = 0;
+        coalesceBuffer = null;
+    }
 
-        buff.clear();
+    // copies bytes that were encoded ahead of time, like the disconnect notice, into a pooled buffer
+    private static ByteBuffer toPooledBuffer(byte[] bytes) {
+        ByteBuffer buff = BufferPool.lease(bytes.length);
+        buff.put(bytes);
+        buff.flip();
         return buff;
     }
 
-    private static void releaseBuffer(ByteBuffer buff) {
-        BUFFER_POOL.add(buff);
+    /**
+     * @return the average number of frames sent by a single write system call, over all connections
+     */
+    public static double framesPerWrite() {
+        long writes = WRITE_CALLS.sum();
+        return writes == 0 ? 0 : (double) FRAMES_WRITTEN.sum() / writes;
     }
 
     @Override
     public void send(T msg) {
         // encode the message and add it to the write queue
         if (msg != null) {
-            // encode the message and add it to the write queue
-            writeQueue.add(ByteBuffer.wrap(encdec.encode(msg)));
-            // update the reactor to be ready for both writing and reading
+            enqueue(new QueuedFrame(false, null, encdec.encode(msg, BufferPool::lease)));
+        }
+    }
+
+    @Override
+    public void sendDroppable(T msg) {
+        if (msg != null) {
+            enqueue(new QueuedFrame(true, null, encdec.encode(msg, BufferPool::lease)));
+        }
+    }
+
+    @Override
+    public void sendEncoded(boolean droppable, ByteBuffer... parts) {
+        enqueue(new QueuedFrame(droppable, null, parts));
+    }
+
+    @Override
+    public void sendConflated(Object key, ByteBuffer... parts) {
+        while (true) {
+            QueuedFrame queued = conflated.get(key);
+            if (queued == null) {
+                QueuedFrame frame = new QueuedFrame(true, key, parts);
+                // counted with its size before anyone can replace it, a replacement only adds the difference
+                int size = frame.size;
+                if (conflated.putIfAbsent(key, frame) == null) {
+                    enqueue(frame, size);
+                    return;
+                }
+                // another sender queued one first, replace that one
+                continue;
+            }
+            synchronized (queued) {
+                if (!queued.taken) {
+                    // still waiting to be written, the new content takes its place in the queue
+                    ByteBuffer[] replaced = queued.parts;
+                    int oldSize = queued.size;
+                    queued.replace(parts);
+                    queuedBytes.addAndGet(queued.size - oldSize);
+                    for (ByteBuffer part : replaced) {
+                        BufferPool.release(part);
+                    }
+                    return;
+                }
+            }
+            // being written already, claim() takes it out of the map and a new frame is queued
+            conflated.remove(key, queued);
+        }
+    }
+
+    private void enqueue(QueuedFrame frame) {
+        enqueue(frame, frame.size);
+    }
+
+    private void enqueue(QueuedFrame frame, int size) {
+        if (closed.get() || closeAfterWrite) {
+            // claimed first, so a conflated frame is not replaced after its buffers went back to the pool
+            if (claim(frame)) {
+                frame.release();
+            }
+            return;
+        }
+        long queued = queuedBytes.addAndGet(size);
+        writeQueue.add(frame);
+        Metrics.WRITE_QUEUE_BYTES.record(queued);
+        if (queued > backpressure.highWatermark()) {
+            onHighWatermark();
+        }
+        // update the reactor to be ready for both writing and reading
+        reactor.updateInterestedOps(chan, readOps() | SelectionKey.OP_WRITE);
+    }
+
+    // the client does not keep up with what we send it, apply the slow consumer policy
+    private void onHighWatermark() {
+        switch (backpressure.policy()) {
+            case PAUSE_READ:
+                if (!readPaused) {
+                    readPaused = true;
+                    Backpressure.paused();
+                }
+                break;
+            case DROP_OLDEST:
+                dropOldest();
+                break;
+            case DISCONNECT:
+                disconnectSlowConsumer();
+                break;
+        }
+    }
+
+    // drops droppable frames from the head of the queue until we are back below the low watermark
+    private void dropOldest() {
+        Iterator<QueuedFrame> it = writeQueue.iterator();
+        while (queuedBytes.get() > backpressure.lowWatermark() && it.hasNext()) {
+            QueuedFrame frame = it.next();
+            // the claim fails if the selector thread or another sender took it first. the iterator
+            // unlinks it where it is, instead of searching the queue for it again
+            if (frame.droppable && claim(frame)) {
+                it.remove();
+                queuedBytes.addAndGet(-frame.size);
+                frame.release();
+                Backpressure.dropped(frame.size);
+            }
+        }
+    }
+
+    private void disconnectSlowConsumer() {
+        synchronized (writeQueue) {
+            if (closeAfterWrite) {
+                return;
+            }
+            closeAfterWrite = true;
+        }
+        Backpressure.disconnected();
+        QueuedFrame pending;
+        while ((pending = writeQueue.poll()) != null) {
+            if (claim(pending)) {
+                queuedBytes.addAndGet(-pending.size);
+                pending.release();
+            }
+        }
+        byte[] notice = backpressure.disconnectNotice();
+        if (notice != null) {
+            // tell the client why, the connection is closed once this is written
+            ByteBuffer buff = toPooledBuffer(notice);
+            queuedBytes.addAndGet(buff.remaining());
+            writeQueue.add(new QueuedFrame(false, null, buff));
+        }
+    }
+
+    /**
+     * takes a frame out of the write queue's hands. the selector thread, a sender dropping frames
+     * and a closing thread may race for the same frame, only the first one gets it and then owns
+     * its buffers. a conflated frame can no longer be replaced once it is claimed
+     * @return false if the frame was already claimed
+     */
+    private boolean claim(QueuedFrame frame) {
+        synchronized (frame) {
+            if (frame.taken) {
+                return false;
+            }
+            frame.taken = true;
+        }
+        if (frame.conflationKey != null) {
+            conflated.remove(frame.conflationKey, frame);
+        }
+        return true;
+    }
+
+    // called on the selector thread after every batch
+    private void resumeIfDrained() {
+        if (readPaused && queuedBytes.get() <= backpressure.lowWatermark()) {
+            readPaused = false;
+            Backpressure.resumed();
             reactor.updateInterestedOps(chan, SelectionKey.OP_READ | SelectionKey.OP_WRITE);
         }
     }
+
+    /**
+     * the ops to register the channel with. a client is published to the connections before it is
+     * registered, so what others sent it in the meantime is already queued and needs OP_WRITE
+     */
+    /* package */ int registrationOps() {
+        return writeQueue.isEmpty() ? readOps() : readOps() | SelectionKey.OP_WRITE;
+    }
+
+    private int readOps() {
+        return readPaused ? 0 : SelectionKey.OP_READ;
+    }
+
+    private static class QueuedFrame {
+        // may be replaced by a newer frame with the same conflation key, only while holding the frame's lock
+        ByteBuffer[] parts;
+        int size;
+        // may be dropped by the DROP_OLDEST policy
+        final boolean droppable;
+        // null if the frame is never replaced
+        final Object conflationKey;
+        // claimed by whoever takes it out of the write queue, guarded by the frame's lock
+        boolean taken = false;
+        // the parts went back to the pool. the selector thread and a closing thread may both
+        // try, and a buffer given back twice would be leased to two frames at once
+        private final AtomicBoolean released = new AtomicBoolean(false);
+
+        QueuedFrame(boolean droppable, Object conflationKey, ByteBuffer... parts) {
+            this.droppable = droppable;
+            this.conflationKey = conflationKey;
+            replace(parts);
+        }
+
+        void replace(ByteBuffer... parts) {
+            this.parts = parts;
+            int size = 0;
+            for (ByteBuffer part : parts) {
+                size += part.remaining();
+            }
+            this.size = size;
+        }
+
+        // gives the pooled parts back, shared parts are ignored by the pool
+        void release() {
+            if (!released.compareAndSet(false, true)) {
+                return;
+            }
+            for (ByteBuffer part : parts) {
+                BufferPool.release(part);
+            }
+        }
+    }
 }
@@ -12,7 +12,6 @@ import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
-import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.function.Supplier;
 
 public class Reactor<T> implements Server<T> {
@@ -22,21 +21,34 @@ public class Reactor<T> implements Server<T> {
     private final Supplier<StompMessagingProtocol<T>> stompFactory;
     private final Supplier<MessageEncoderDecoder<T>> readerFactory;
     private final ActorThreadPool pool;
+    private final int numSelectors;
+    private SubReactor<T>[] subReactors;
     private Selector selector;
+    private ServerSocketChannel serverSock;
 
     private final ConnectionsImpl<T> connections = new ConnectionsImpl<>();
     private int connectionIdCounter = 0;
+    private int nextSubReactor = 0;
+    private Backpressure backpressure = Backpressure.fromSystemProperties(null);
 
-    private Thread selectorThread;
-    private final ConcurrentLinkedQueue<Runnable> selectorTasks = new ConcurrentLinkedQueue<>();
+    public Reactor(
+            int numThreads,
+            int port,
+            Supplier<MessagingProtocol<T>> protocolFactory,
+            Supplier<MessageEncoderDecoder<T>> readerFactory) {
+
+        this(numThreads, 1, port, protocolFactory, readerFactory);
+    }
 
     public Reactor(
             int numThreads,
+            int numSelectors,
             int port,
             Supplier<MessagingProtocol<T>> protocolFactory,
             Supplier<MessageEncoderDecoder<T>> readerFactory) {
 
         this.pool = new ActorThreadPool(numThreads);
+        this.numSelectors = Math.max(1, numSelectors);
         this.port = port;
         this.protocolFactory = protocolFactory;
         this.readerFactory = readerFactory;
@@ -49,7 +61,18 @@ public class Reactor<T> implements Server<T> {
             Supplier<StompMessagingProtocol<T>> stompFactory,
             Supplier<MessageEncoderDecoder<T>> readerFactory, Void ignore) {
 
+        this(numThreads, 1, port, stompFactory, readerFactory, ignore);
+    }
+
+    public Reactor(
+            int numThreads,
+            int numSelectors,
+            int port,
+            Supplier<StompMessagingProtocol<T>> stompFactory,
+            Supplier<MessageEncoderDecoder<T>> readerFactory, Void ignore) {
+
         this.pool = new ActorThreadPool(numThreads);
+        this.numSelectors = Math.max(1, numSelectors);
         this.port = port;
         this.protocolFactory = null;
         this.readerFactory = readerFactory;
@@ -58,35 +81,44 @@ public class Reactor<T> implements Server<T> {
 
     @Override
     public void serve() {
-        selectorThread = Thread.currentThread();
-        try (Selector selector = Selector.open();
-                ServerSocketChannel serverSock = ServerSocketChannel.open()) {
+        Thread[] selectorThreads = new Thread[0];
+        try (ServerSocketChannel serverSock = ServerSocketChannel.open()) {
 
-            this.selector = selector; // just to be able to close
+            this.serverSock = serverSock;
+            subReactors = newSubReactors(numSelectors);
+            for (int i = 0; i < numSelectors; i++) {
+                subReactors[i] = new SubReactor<>(this, pool);
+            }
 
             serverSock.bind(new InetSocketAddress(port));
             serverSock.configureBlocking(false);
-            serverSock.register(selector, SelectionKey.OP_ACCEPT);
-            System.out.println("Server started");
 
-            while (!Thread.currentThread().isInterrupted()) {
-
-                selector.select();
-                runSelectionThreadTasks();
-
-                for (SelectionKey key : selector.selectedKeys()) {
-
-                    if (!key.isValid()) {
-                        continue;
-                    } else if (key.isAcceptable()) {
-                        handleAccept(serverSock, selector);
-                    } else {
-                        handleReadWrite(key);
+            if (numSelectors == 1) {
+                // single reactor mode - the same selector accepts, reads and writes
+                this.selector = subReactors[0].selector(); // just to be able to close
+                serverSock.register(selector, SelectionKey.OP_ACCEPT);
+                System.out.println("Server started");
+                subReactors[0].run();
+            } else {
+                // multi reactor mode - this thread only accepts and hands the clients to the sub-reactors
+                selectorThreads = new Thread[numSelectors];
+                for (int i = 0; i < numSelectors; i++) {
+                    selectorThreads[i] = new Thread(subReactors[i], "sub-reactor-" + i);
+                    selectorThreads[i].start();
+                }
+                try (Selector selector = Selector.open()) {
+                    this.selector = selector; // just to be able to close
+                    serverSock.register(selector, SelectionKey.OP_ACCEPT);
+                    System.out.println("Server started");
+
+                    while (!Thread.currentThread().isInterrupted()) {
+                        selector.select();
+                        if (!selector.selectedKeys().isEmpty()) {
+                            selector.selectedKeys().clear();
+                            handleAccept();
+                        }
                     }
                 }
-
-                selector.selectedKeys().clear(); // clear the selected keys set so that we can know about new events
-
             }
 
         } catch (ClosedSelectorException ex) {
@@ -96,73 +128,92 @@ public class Reactor<T> implements Server<T> {
             ex.printStackTrace();
         }
 
-        System.out.println("Server closed!!!");
+        closeSubReactors();
+        for (Thread t : selectorThreads) {
+            t.interrupt();
+        }
+        System.out.println("Server closed!!! (average frames per write: " + NonBlockingConnectionHandler.framesPerWrite() + ")");
+        System.out.println(BufferPool.stats());
+        System.out.println(Backpressure.stats());
+        BufferPool.reportLeaks();
         pool.shutdown();
+        connections.shutdown();
     }
 
-    /* package */ void updateInterestedOps(SocketChannel chan, int ops) {
-        final SelectionKey key = chan.keyFor(selector);
-        if (Thread.currentThread() == selectorThread) {
-            key.interestOps(ops);
-        } else {
-            selectorTasks.add(() -> {
-                key.interestOps(ops);
-            });
-            selector.wakeup();
+    /* package */ void handleAccept() throws IOException {
+        // accept the new connection, more than one may be waiting
+        SocketChannel clientChan;
+        while ((clientChan = serverSock.accept()) != null) {
+            // every client picks its own sub-reactor, so the round robin moves once per client
+            SubReactor<T> subReactor = numSelectors == 1 ? subReactors[0] : chooseSubReactor();
+            // make it non-blocking
+            clientChan.configureBlocking(false);
+            // create a non-blocking connection handler
+            NonBlockingConnectionHandler<T> handler;
+
+            //checking which factory is not null to decide which protocol to create
+            if (stompFactory != null) {
+                StompMessagingProtocol<T> protocol = stompFactory.get();
+                int connectionId = connectionIdCounter++;
+                //initialize the protocol with connectionId and connections
+                protocol.start(connectionId, connections);
+                //create the handler
+                handler = new NonBlockingConnectionHandler<>(readerFactory.get(), protocol, clientChan, subReactor, backpressure);
+                //connect the handler to connections
+                connections.connect(connectionId, handler);
+            } else {
+                //create the handler with regular protocol
+                handler = new NonBlockingConnectionHandler<>(readerFactory.get(), protocolFactory.get(), clientChan, subReactor, backpressure);
+            }
+            // hand the new channel to its selector, for read operations
+            subReactor.register(clientChan, handler);
         }
     }
 
-    private void handleAccept(ServerSocketChannel serverChan, Selector selector) throws IOException {
-        // accept the new connection
-        SocketChannel clientChan = serverChan.accept();
-        // make it non-blocking
-        clientChan.configureBlocking(false);
-        // create a non-blocking connection handler
-        NonBlockingConnectionHandler<T> handler;
-
-        //checking which factory is not null to decide which protocol to create
-        if (stompFactory != null) {
-            StompMessagingProtocol<T> protocol = stompFactory.get();
-            int connectionId = connectionIdCounter++;
-            //initialize the protocol with connectionId and connections
-            protocol.start(connectionId, connections);
-            //create the handler
-            handler = new NonBlockingConnectionHandler<>(readerFactory.get(), protocol, clientChan, this);
-            //connect the handler to connections
-            connections.connect(connectionId, handler);
-        } else {
-            //create the handler with regular protocol
-            handler = new NonBlockingConnectionHandler<>(readerFactory.get(), protocolFactory.get(), clientChan, this);
+    // least loaded sub-reactor, ties are broken round robin so an idle server still spreads the clients
+    private SubReactor<T> chooseSubReactor() {
+        SubReactor<T> best = null;
+        for (int i = 0; i < subReactors.length; i++) {
+            SubReactor<T> candidate = subReactors[(nextSubReactor + i) % subReactors.length];
+            if (best == null || candidate.connectionCount() < best.connectionCount()) {
+                best = candidate;
+            }
         }
-        // register the new channel with the selector, for read operations
-        clientChan.register(selector, SelectionKey.OP_READ, handler);
+        nextSubReactor = (nextSubReactor + 1) % subReactors.length;
+        return best;
     }
 
-    private void handleReadWrite(SelectionKey key) {
-        @SuppressWarnings("unchecked")
-        NonBlockingConnectionHandler<T> handler = (NonBlockingConnectionHandler<T>) key.attachment();
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static <T> SubReactor<T>[] newSubReactors(int length) {
+        return new SubReactor[length];
+    }
 
-        if (key.isReadable()) {
-            Runnable task = handler.continueRead();
-            if (task != null) {
-                pool.submit(handler, task);
-            }
+    private void closeSubReactors() {
+        if (subReactors == null) {
+            return;
         }
-
-        if (key.isValid() && key.isWritable()) {
-            handler.continueWrite();
+        for (SubReactor<T> subReactor : subReactors) {
+            try {
+                if (subReactor != null) {
+                    subReactor.close();
+                }
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            }
         }
     }
 
-    private void runSelectionThreadTasks() {
-        while (!selectorTasks.isEmpty()) {
-            selectorTasks.remove().run();
-        }
+    /**
+     * sets the write queue limits of the connections accepted from now on
+     */
+    public void setBackpressure(Backpressure backpressure) {
+        this.backpressure = backpressure;
     }
 
     @Override
     public void close() throws IOException {
         selector.close();
+        closeSubReactors();
     }
 
 }
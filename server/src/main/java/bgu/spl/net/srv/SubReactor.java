@@ -0,0 +1,175 @@
+package bgu.spl.net.srv;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A single selector loop of the reactor. In single-reactor mode the reactor
+ * runs one of these on its own thread and also lets it accept new clients,
+ * in multi-reactor mode the acceptor hands every accepted channel to one of
+ * several sub-reactors, each running on its own thread.
+ */
+public class SubReactor<T> implements Runnable {
+
+    private final Reactor<T> reactor;
+    private final ActorThreadPool pool;
+    private final Selector selector;
+    private volatile Thread selectorThread;
+    private final ConcurrentLinkedQueue<Runnable> selectorTasks = new ConcurrentLinkedQueue<>();
+    // number of channels currently registered, used by the acceptor to pick the least loaded
+    private final AtomicInteger connectionCount = new AtomicInteger(0);
+
+    /* package */ SubReactor(Reactor<T> reactor, ActorThreadPool pool) throws IOException {
+        this.reactor = reactor;
+        this.pool = pool;
+        this.selector = Selector.open();
+    }
+
+    @Override
+    public void run() {
+        selectorThread = Thread.currentThread();
+        BufferPool.enableThreadCache();
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+
+                selector.select();
+                long start = System.nanoTime();
+                runSelectionThreadTasks();
+
+                for (SelectionKey key : selector.selectedKeys()) {
+
+                    if (!key.isValid()) {
+                        continue;
+                    } else if (key.isAcceptable()) {
+                        // only happens in single-reactor mode, where this selector also owns the server socket
+                        reactor.handleAccept();
+                    } else {
+                        handleReadWrite(key);
+                    }
+                }
+
+                selector.selectedKeys().clear(); // clear the selected keys set so that we can know about new events
+                Metrics.SELECTOR_LOOP.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+            }
+        } catch (ClosedSelectorException ex) {
+            // do nothing - server was requested to be closed
+        } catch (IOException ex) {
+            // this is an error
+            ex.printStackTrace();
+        } finally {
+            BufferPool.disableThreadCache();
+        }
+    }
+
+    /* package */ Selector selector() {
+        return selector;
+    }
+
+    /* package */ int connectionCount() {
+        return connectionCount.get();
+    }
+
+    /* package */ void register(SocketChannel chan, NonBlockingConnectionHandler<T> handler) {
+        connectionCount.incrementAndGet();
+        execute(() -> registerNow(chan, handler));
+    }
+
+    /**
+     * runs the task on the selector thread, right away if we are on it
+     */
+    /* package */ void execute(Runnable task) {
+        if (Thread.currentThread() == selectorThread) {
+            task.run();
+        } else {
+            selectorTasks.add(task);
+            selector.wakeup();
+        }
+    }
+
+    private void registerNow(SocketChannel chan, NonBlockingConnectionHandler<T> handler) {
+        try {
+            // register the new channel with the selector, for read operations and for writing
+            // what was queued before it got here
+            chan.register(selector, handler.registrationOps(), handler);
+        } catch (ClosedChannelException ex) {
+            // the client left before we got to register it. the handler does the accounting,
+            // it may also be closed by another thread and counts the close only once
+            handler.close();
+        }
+    }
+
+    /* package */ void updateInterestedOps(SocketChannel chan, int ops) {
+        final SelectionKey key = chan.keyFor(selector);
+        if (key == null) {
+            // not registered yet. this task may run before or after the registration task, if it
+            // runs first it finds no key and does nothing, the registration then picks up the ops
+            // from the handler itself
+            selectorTasks.add(() -> {
+                SelectionKey registered = chan.keyFor(selector);
+                if (registered != null && registered.isValid()) {
+                    registered.interestOps(ops);
+                }
+            });
+            selector.wakeup();
+        } else if (Thread.currentThread() == selectorThread) {
+            key.interestOps(ops);
+        } else {
+            selectorTasks.add(() -> {
+                if (key.isValid()) {
+                    key.interestOps(ops);
+                }
+            });
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * runs the task on the connection's actor, after the reads already submitted for it
+     */
+    /* package */ void submit(NonBlockingConnectionHandler<T> handler, Runnable task) {
+        try {
+            pool.submit(handler.mailbox(), task);
+        } catch (RejectedExecutionException ex) {
+            // the server is closing and the actors are gone, nothing else runs for the connection
+            task.run();
+        }
+    }
+
+    /* package */ void connectionClosed() {
+        connectionCount.decrementAndGet();
+    }
+
+    private void handleReadWrite(SelectionKey key) {
+        @SuppressWarnings("unchecked")
+        NonBlockingConnectionHandler<T> handler = (NonBlockingConnectionHandler<T>) key.attachment();
+
+        if (key.isReadable()) {
+            Runnable task = handler.continueRead();
+            if (task != null) {
+                pool.submit(handler.mailbox(), task);
+            }
+        }
+
+        if (key.isValid() && key.isWritable()) {
+            handler.continueWrite();
+        }
+    }
+
+    private void runSelectionThreadTasks() {
+        while (!selectorTasks.isEmpty()) {
+            selectorTasks.remove().run();
+        }
+    }
+
+    /* package */ void close() throws IOException {
+        selector.close();
+    }
+}
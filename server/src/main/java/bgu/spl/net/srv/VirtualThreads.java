@@ -0,0 +1,54 @@
+package bgu.spl.net.srv;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Starts virtual threads when the running JVM has them (Java 21 and up).
+ * The server is still built for Java 8, so Thread.ofVirtual is looked up at
+ * runtime, and on older JVMs we fall back to platform threads.
+ */
+public final class VirtualThreads {
+
+    private static final ThreadFactory FACTORY = lookupFactory();
+
+    private VirtualThreads() {
+    }
+
+    /**
+     * @return true if start really creates virtual threads
+     */
+    public static boolean isSupported() {
+        return FACTORY != null;
+    }
+
+    /**
+     * starts the task on a new virtual thread, or on a platform thread if virtual threads are not supported
+     */
+    public static Thread start(Runnable task) {
+        Thread thread = FACTORY != null ? FACTORY.newThread(task) : new Thread(task);
+        thread.start();
+        return thread;
+    }
+
+    // Thread.ofVirtual().name("vthread-", 0).factory()
+    private static ThreadFactory lookupFactory() {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Class<?> virtualBuilderClass = Class.forName("java.lang.Thread$Builder$OfVirtual");
+            MethodHandle ofVirtual = lookup.findStatic(Thread.class, "ofVirtual", MethodType.methodType(virtualBuilderClass));
+            MethodHandle name = lookup.findVirtual(builderClass, "name",
+                    MethodType.methodType(builderClass, String.class, long.class));
+            MethodHandle factory = lookup.findVirtual(builderClass, "factory", MethodType.methodType(ThreadFactory.class));
+            Object builder = ofVirtual.invoke();
+            builder = name.invoke(builder, "vthread-", 0L);
+            return (ThreadFactory) factory.invoke(builder);
+        } catch (Throwable ex) {
+            // older JVM, or virtual threads are still a preview feature
+            return null;
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package bgu.spl.net.impl.stomp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+// stomp.log.dir and stomp.log.segmentBytes (4k) are set for the tests in the pom
+public class ChannelLogTest {
+
+    private final ChannelLog.Flusher flusher = new ChannelLog.Flusher();
+    private final List<String> destinations = new ArrayList<>();
+
+    @After
+    public void tearDown() {
+        flusher.close();
+        for (String destination : destinations) {
+            System.clearProperty("stomp.log.durability." + destination);
+        }
+    }
+
+    @Test
+    public void reopenedLogReplaysEverything() throws IOException {
+        String destination = logged("/reopen");
+        ChannelLog log = ChannelLog.open(destination, flusher);
+        // about 100 bytes a message, so they take several segments
+        for (int i = 0; i < 100; i++) {
+            log.append(message(i), null);
+        }
+        assertEquals(100, log.nextOffset());
+        log.close();
+
+        ChannelLog reopened = ChannelLog.open(destination, flusher);
+        assertEquals(100, reopened.nextOffset());
+        List<String> replayed = replay(reopened, "earliest");
+        assertEquals(100, replayed.size());
+        for (int i = 0; i < 100; i++) {
+            assertEquals(text(i), replayed.get(i));
+        }
+        assertEquals(30, replay(reopened, "70").size());
+        // new messages go on from where the old ones stopped
+        reopened.append(message(100), null);
+        assertEquals(text(100), replay(reopened, "100").get(0));
+        reopened.close();
+    }
+
+    @Test
+    public void replaysFromATime() throws IOException {
+        ChannelLog log = ChannelLog.open(logged("/time"), flusher);
+        log.append(message(0), null);
+        long between = System.currentTimeMillis() + 1;
+        while (System.currentTimeMillis() <= between) {
+            Thread.yield();
+        }
+        log.append(message(1), null);
+        assertEquals(1, log.offsetOf("time:" + between));
+        assertEquals(2, log.offsetOf("time:" + Long.MAX_VALUE));
+        log.close();
+    }
+
+    @Test
+    public void storedCallbackRuns() throws IOException {
+        ChannelLog log = ChannelLog.open(logged("/stored"), flusher);
+        AtomicInteger stored = new AtomicInteger();
+        log.append(message(0), stored::incrementAndGet);
+        assertEquals(1, stored.get());
+        log.close();
+    }
+
+    @Test
+    public void fsyncBatchAcrossSegmentsIsStored() throws Exception {
+        String destination = logged("/fsync");
+        System.setProperty("stomp.log.durability." + destination, ChannelLog.Durability.FSYNC.name());
+        ChannelLog log = ChannelLog.open(destination, flusher);
+        // a batch only waits for its last message, the segments it filled before are forced on the way
+        for (int i = 0; i < 100; i++) {
+            log.append(message(i), null);
+        }
+        CountDownLatch stored = new CountDownLatch(1);
+        log.append(message(100), stored::countDown);
+        assertTrue(stored.await(10, TimeUnit.SECONDS));
+        log.close();
+    }
+
+    @Test
+    public void skipsFilesThatAreNotSegments() throws IOException {
+        String destination = logged("/stray");
+        ChannelLog log = ChannelLog.open(destination, flusher);
+        log.append(message(0), null);
+        log.close();
+        File dir = new File(System.getProperty("stomp.log.dir"), "%2Fstray");
+        assertTrue(new File(dir, "notes.log").createNewFile());
+
+        ChannelLog reopened = ChannelLog.open(destination, flusher);
+        assertEquals(1, replay(reopened, "earliest").size());
+        reopened.close();
+    }
+
+    @Test
+    public void dotDestinationsStayInTheLogDir() throws IOException {
+        File logDir = new File(System.getProperty("stomp.log.dir")).getCanonicalFile();
+        for (String destination : new String[] {".", "..", "../escaped"}) {
+            ChannelLog log = ChannelLog.open(logged(destination), flusher);
+            assertNotNull(log);
+            log.append(message(0), null);
+            log.close();
+        }
+        assertTrue(new File(logDir, "%2E").isDirectory());
+        assertTrue(new File(logDir, "%2E%2E").isDirectory());
+        assertTrue(new File(logDir, "%2E%2E%2Fescaped").isDirectory());
+    }
+
+    @Test(expected = IOException.class)
+    public void emptyDestinationIsNotTheLogDir() throws IOException {
+        ChannelLog.open(logged(""), flusher);
+    }
+
+    private String logged(String destination) {
+        destinations.add(destination);
+        System.setProperty("stomp.log.durability." + destination, ChannelLog.Durability.PAGE_CACHE.name());
+        // whatever an earlier run left behind
+        File dir = new File(System.getProperty("stomp.log.dir"),
+                destination.replace("/", "%2F").replace(".", "%2E"));
+        File[] files = destination.isEmpty() ? null : dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        return destination;
+    }
+
+    private static List<String> replay(ChannelLog log, String position) {
+        List<String> messages = new ArrayList<>();
+        log.replay(log.offsetOf(position), message -> messages.add(StandardCharsets.UTF_8.decode(message).toString()));
+        return messages;
+    }
+
+    private static byte[] message(int i) {
+        return text(i).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String text(int i) {
+        StringBuilder text = new StringBuilder("message ").append(i).append(' ');
+        while (text.length() < 90) {
+            text.append('x');
+        }
+        return text.toString();
+    }
+}
@@ -0,0 +1,116 @@
+package bgu.spl.net.impl.stomp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.After;
+import org.junit.Test;
+
+import bgu.spl.net.srv.ConnectionHandler;
+
+public class ConnectionsImplTest {
+
+    private final ConnectionsImpl<String> connections = new ConnectionsImpl<>();
+
+    @After
+    public void tearDown() {
+        connections.shutdown();
+    }
+
+    @Test
+    public void unackedMessagesComeBackOnTheNextSubscription() throws Exception {
+        Received first = subscribeWithAck(1, "/unacked", null);
+        connections.send("/unacked", "m0");
+        connections.send("/unacked", "m1");
+        assertTrue(first.await("m1", 5000));
+        connections.unsubscribe("/unacked", 1, 1);
+
+        Received second = subscribeWithAck(2, "/unacked", null);
+        assertTrue(second.await("m1", 5000));
+        assertEquals(2, second.count("redelivered:true"));
+    }
+
+    @Test
+    public void unackedMessagesSurviveASubscriptionThatEndsBeforeItStarts() throws Exception {
+        Received first = subscribeWithAck(1, "/raced", null);
+        connections.send("/raced", "m0");
+        connections.send("/raced", "m1");
+        assertTrue(first.await("m1", 5000));
+        connections.unsubscribe("/raced", 1, 1);
+
+        // holds the channel's stripe until the subscription it is starting has ended
+        CountDownLatch unsubscribed = new CountDownLatch(1);
+        subscribeWithAck(2, "/raced", () -> {
+            try {
+                unsubscribed.await();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        connections.unsubscribe("/raced", 2, 1);
+        unsubscribed.countDown();
+
+        Received third = subscribeWithAck(3, "/raced", null);
+        assertTrue(third.await("m1", 5000));
+        assertTrue(third.contains("m0"));
+    }
+
+    // every subscription is of the same user, so they share what is left unacknowledged
+    private Received subscribeWithAck(int connectionId, String destination, Runnable onSubscribed) {
+        Received received = new Received();
+        connections.connect(connectionId, received);
+        connections.subscribe(destination, connectionId, 1, null, new AckWindow(true, 64, "user"), null, onSubscribed);
+        return received;
+    }
+
+    // keeps the text of everything sent to it
+    private static class Received implements ConnectionHandler<String> {
+        private final StringBuilder text = new StringBuilder();
+
+        @Override
+        public synchronized void send(String msg) {
+            text.append(msg);
+            notifyAll();
+        }
+
+        @Override
+        public synchronized void sendEncoded(boolean droppable, ByteBuffer... parts) {
+            for (ByteBuffer part : parts) {
+                text.append(StandardCharsets.UTF_8.decode(part.duplicate()));
+            }
+            notifyAll();
+        }
+
+        synchronized boolean contains(String part) {
+            return text.indexOf(part) >= 0;
+        }
+
+        synchronized int count(String part) {
+            int count = 0;
+            for (int at = text.indexOf(part); at >= 0; at = text.indexOf(part, at + 1)) {
+                count++;
+            }
+            return count;
+        }
+
+        synchronized boolean await(String part, long millis) throws InterruptedException {
+            long until = System.currentTimeMillis() + millis;
+            while (!contains(part)) {
+                long left = until - System.currentTimeMillis();
+                if (left <= 0) {
+                    return false;
+                }
+                wait(left);
+            }
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package bgu.spl.net.impl.stomp;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Test;
+
+import bgu.spl.net.srv.ConnectionHandler;
+
+// two nodes in one process, linked over loopback
+public class FederationTest {
+
+    private static final String[] PROPERTIES = {"stomp.federation.nodeId", "stomp.federation.port",
+        "stomp.federation.peers", "stomp.federation.secret", "stomp.federation.bind", "stomp.federation.retryMillis"};
+
+    private final List<ConnectionsImpl<String>> nodes = new ArrayList<>();
+
+    @After
+    public void tearDown() {
+        for (ConnectionsImpl<String> node : nodes) {
+            node.shutdown();
+        }
+        for (String property : PROPERTIES) {
+            System.clearProperty(property);
+        }
+    }
+
+    @Test
+    public void messagesGoBothWays() throws Exception {
+        int port = freePort();
+        ConnectionsImpl<String> a = node("a", "secret", port, null);
+        ConnectionsImpl<String> b = node("b", "secret", freePort(), "127.0.0.1:" + port);
+        Received onA = subscriber(a, "/to-a");
+        Received onB = subscriber(b, "/to-b");
+        // a message sent before the interest reaches the peer is not forwarded, so send until one is
+        assertTrue(sendUntilReceived(b, "/to-a", "from b", onA));
+        assertTrue(sendUntilReceived(a, "/to-b", "from a", onB));
+    }
+
+    @Test
+    public void aPeerWithAnotherSecretIsNotLinked() throws Exception {
+        int port = freePort();
+        ConnectionsImpl<String> a = node("a", "secret", port, null);
+        ConnectionsImpl<String> b = node("b", "guess", freePort(), "127.0.0.1:" + port);
+        Received onA = subscriber(a, "/to-a");
+        assertFalse(sendUntilReceived(b, "/to-a", "from b", onA));
+    }
+
+    @Test
+    public void forwardsToTheServerDestinationsAreDropped() throws Exception {
+        ConnectionsImpl<String> a = node("a", "secret", freePort(), null);
+        Received stats = subscriber(a, ConnectionsImpl.STATS_DESTINATION);
+        Received plain = subscriber(a, "/plain");
+        a.receiveForwarded(ConnectionsImpl.STATS_DESTINATION, Collections.singletonList("forged"));
+        a.receiveForwarded("/plain", Collections.singletonList("forwarded"));
+        // both go through the same stripes, once the second is in the first was dropped
+        assertTrue(plain.await("forwarded", 5000));
+        assertFalse(stats.contains("forged"));
+    }
+
+    private ConnectionsImpl<String> node(String id, String secret, int port, String peers) {
+        System.setProperty("stomp.federation.nodeId", id);
+        System.setProperty("stomp.federation.secret", secret);
+        System.setProperty("stomp.federation.bind", "127.0.0.1");
+        System.setProperty("stomp.federation.port", Integer.toString(port));
+        System.setProperty("stomp.federation.retryMillis", "100");
+        if (peers == null) {
+            System.clearProperty("stomp.federation.peers");
+        } else {
+            System.setProperty("stomp.federation.peers", peers);
+        }
+        ConnectionsImpl<String> node = new ConnectionsImpl<>();
+        nodes.add(node);
+        return node;
+    }
+
+    private static Received subscriber(ConnectionsImpl<String> node, String destination) {
+        Received received = new Received();
+        int connectionId = destination.hashCode();
+        node.connect(connectionId, received);
+        node.subscribe(destination, connectionId, 1);
+        return received;
+    }
+
+    private static boolean sendUntilReceived(ConnectionsImpl<String> from, String destination, String body,
+            Received received) throws InterruptedException {
+        for (int i = 0; i < 20; i++) {
+            from.send(destination, body);
+            if (received.await(body, 100)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    // keeps the text of everything sent to it
+    private static class Received implements ConnectionHandler<String> {
+        private final StringBuilder text = new StringBuilder();
+
+        @Override
+        public synchronized void send(String msg) {
+            text.append(msg);
+            notifyAll();
+        }
+
+        @Override
+        public synchronized void sendEncoded(boolean droppable, ByteBuffer... parts) {
+            for (ByteBuffer part : parts) {
+                text.append(StandardCharsets.UTF_8.decode(part.duplicate()));
+            }
+            notifyAll();
+        }
+
+        synchronized boolean contains(String body) {
+            return text.indexOf(body) >= 0;
+        }
+
+        synchronized boolean await(String body, long millis) throws InterruptedException {
+            long until = System.currentTimeMillis() + millis;
+            while (!contains(body)) {
+                long left = until - System.currentTimeMillis();
+                if (left <= 0) {
+                    return false;
+                }
+                wait(left);
+            }
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package bgu.spl.net.impl.stomp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+public class IntMapTest {
+
+    @Test
+    public void putGetAndRemove() {
+        IntMap<String> map = new IntMap<>();
+        assertNull(map.put(1, "a"));
+        assertEquals("a", map.put(1, "b"));
+        assertEquals("b", map.putIfAbsent(1, "c"));
+        assertEquals("b", map.get(1));
+        assertNull(map.get(2));
+        assertFalse(map.remove(1, "a"));
+        assertTrue(map.remove(1, "b"));
+        assertNull(map.get(1));
+        assertNull(map.remove(1));
+        assertTrue(map.isEmpty());
+    }
+
+    @Test
+    public void removedKeyCanComeBack() {
+        IntMap<String> map = new IntMap<>();
+        map.put(7, "a");
+        map.remove(7);
+        assertNull(map.putIfAbsent(7, "b"));
+        assertEquals("b", map.get(7));
+        assertEquals(1, map.size());
+    }
+
+    @Test
+    public void growsAndDropsTombstones() {
+        IntMap<Integer> map = new IntMap<>();
+        // ids keep growing like connection ids do, while only a few are live at a time
+        for (int i = 0; i < 100_000; i++) {
+            map.put(i, i);
+            if (i >= 10) {
+                assertEquals(Integer.valueOf(i - 10), map.remove(i - 10));
+            }
+        }
+        assertEquals(10, map.size());
+        Set<Integer> values = new HashSet<>();
+        for (Integer value : map) {
+            values.add(value);
+        }
+        assertEquals(10, values.size());
+        for (int i = 100_000 - 10; i < 100_000; i++) {
+            assertTrue(values.contains(i));
+            assertEquals(Integer.valueOf(i), map.get(i));
+        }
+    }
+
+    @Test
+    public void negativeKeys() {
+        IntMap<String> map = new IntMap<>();
+        map.put(-1, "minus one");
+        map.put(0, "zero");
+        map.put(Integer.MIN_VALUE, "min");
+        assertEquals("minus one", map.get(-1));
+        assertEquals("zero", map.get(0));
+        assertEquals("min", map.get(Integer.MIN_VALUE));
+    }
+
+    @Test
+    public void readersAlwaysSeeAKeptKey() throws InterruptedException {
+        IntMap<Integer> map = new IntMap<>();
+        map.put(-1, -1);
+        AtomicBoolean done = new AtomicBoolean(false);
+        AtomicReference<String> failure = new AtomicReference<>();
+        Thread reader = new Thread(() -> {
+            while (!done.get()) {
+                Integer value = map.get(-1);
+                if (value == null || value != -1) {
+                    failure.set("lost the kept key, got " + value);
+                }
+            }
+        });
+        reader.start();
+        // rebuilds the table many times under the reader
+        for (int i = 0; i < 200_000; i++) {
+            map.put(i, i);
+            map.remove(i);
+        }
+        done.set(true);
+        reader.join();
+        assertNull(failure.get());
+    }
+}
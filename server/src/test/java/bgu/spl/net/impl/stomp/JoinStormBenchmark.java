@@ -0,0 +1,90 @@
+package bgu.spl.net.impl.stomp;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import bgu.spl.net.srv.ConnectionHandler;
+
+/**
+ * A kickoff: the fans of a match all connect and subscribe to its channel, the
+ * first event is fanned out to every one of them, and they all leave again.
+ * Each invocation is one whole storm on a fresh ConnectionsImpl.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class JoinStormBenchmark {
+
+    private static final String CHANNEL = "/germany_japan";
+
+    @Param({"50000"})
+    public int subscribers;
+
+    private ConnectionsImpl<String> connections;
+    private CountDownLatch delivered;
+
+    @Setup(Level.Invocation)
+    public void setUp() {
+        connections = new ConnectionsImpl<>();
+        delivered = new CountDownLatch(subscribers);
+    }
+
+    @TearDown(Level.Invocation)
+    public void tearDown() {
+        connections.shutdown();
+    }
+
+    @Benchmark
+    public void joinSendLeave() throws InterruptedException {
+        for (int id = 0; id < subscribers; id++) {
+            connections.connect(id, new CountingHandler(delivered));
+            connections.subscribe(CHANNEL, id, 1);
+        }
+        connections.send(CHANNEL, "reporter@@@@@goal!");
+        delivered.await();
+        for (int id = 0; id < subscribers; id++) {
+            connections.disconnect(id);
+        }
+    }
+
+    // counts down once per message instead of writing it anywhere
+    private static class CountingHandler implements ConnectionHandler<String> {
+        private final CountDownLatch delivered;
+
+        CountingHandler(CountDownLatch delivered) {
+            this.delivered = delivered;
+        }
+
+        @Override
+        public void send(String msg) {
+            delivered.countDown();
+        }
+
+        @Override
+        public void sendEncoded(boolean droppable, ByteBuffer... parts) {
+            delivered.countDown();
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
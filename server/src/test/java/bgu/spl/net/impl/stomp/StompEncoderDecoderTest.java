@@ -0,0 +1,136 @@
+package bgu.spl.net.impl.stomp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+// the limits are the defaults, 64k of headers and 8m a frame
+public class StompEncoderDecoderTest {
+
+    private static final String FRAMES = "CONNECT\naccept-version:1.2\nhost:stomp\n\n\u0000"
+            + "\n\r\n"
+            + "SEND\ndestination:/a\ncontent-length:5\n\na\u0000b\u0000c\u0000"
+            + "SEND\ndestination:/b\n\nhello\u0000";
+
+    private final StompEncoderDecoder decoder = new StompEncoderDecoder();
+
+    @Test
+    public void decodesWholeInput() {
+        List<StompFrameView> frames = decode(bytes(FRAMES));
+        assertEquals(3, frames.size());
+        assertEquals(StompCommand.CONNECT, frames.get(0).getCommand());
+        assertEquals("stomp", frames.get(0).getHeader("host"));
+        assertEquals("hello", frames.get(2).getBody());
+        assertNull(decoder.failure());
+    }
+
+    @Test
+    public void nullCharsInABodyWithContentLength() {
+        StompFrameView send = decode(bytes(FRAMES)).get(1);
+        assertEquals(StompCommand.SEND, send.getCommand());
+        assertEquals("a\u0000b\u0000c", send.getBody());
+    }
+
+    @Test
+    public void framesSplitAnywhereDecodeTheSame() {
+        byte[] all = bytes(FRAMES);
+        List<String> whole = texts(decode(all));
+        for (int chunk = 1; chunk <= 7; chunk++) {
+            StompEncoderDecoder split = new StompEncoderDecoder();
+            List<String> decoded = new ArrayList<>();
+            for (int from = 0; from < all.length; from += chunk) {
+                split.decodeFrames(ByteBuffer.wrap(all, from, Math.min(chunk, all.length - from)),
+                        frame -> decoded.add(frame.toString()));
+            }
+            assertEquals("read " + chunk + " bytes at a time", whole, decoded);
+        }
+    }
+
+    @Test
+    public void decodeNextByteCompletesFrames() {
+        List<String> decoded = new ArrayList<>();
+        for (byte b : bytes(FRAMES)) {
+            String frame = decoder.decodeNextByte(b);
+            if (frame != null) {
+                decoded.add(frame);
+            }
+        }
+        assertEquals(texts(decode(bytes(FRAMES))), decoded);
+    }
+
+    @Test
+    public void headersOverTheLimitStopTheDecoder() {
+        StringBuilder frame = new StringBuilder("SEND\ndestination:/a\nbig:");
+        while (frame.length() <= 64 * 1024) {
+            frame.append('x');
+        }
+        List<StompFrameView> frames = decode(bytes("DISCONNECT\n\n\u0000" + frame + "\n\nbody\u0000"));
+        // the frame before it still counts
+        assertEquals(1, frames.size());
+        assertEquals(StompCommand.DISCONNECT, frames.get(0).getCommand());
+        assertEquals("Headers too large", decoder.failure().getMessage());
+        // nothing after the failure is decoded
+        assertTrue(decode(bytes(FRAMES)).isEmpty());
+    }
+
+    @Test
+    public void contentLengthOverTheLimitFailsBeforeTheBody() {
+        decode(bytes("SEND\ndestination:/a\ncontent-length:" + (9 << 20) + "\n\n"));
+        assertEquals("Frame too large", decoder.failure().getMessage());
+    }
+
+    @Test
+    public void bodyOverTheLimitFails() {
+        byte[] body = new byte[(8 << 20) + 1];
+        Arrays.fill(body, (byte) 'x');
+        decode(bytes("SEND\ndestination:/a\n\n"));
+        assertNull(decoder.failure());
+        assertTrue(decode(body).isEmpty());
+        assertEquals("Frame too large", decoder.failure().getMessage());
+    }
+
+    @Test
+    public void invalidContentLengths() {
+        decode(bytes("SEND\ncontent-length:five\n\nhello\u0000"));
+        assertEquals("Invalid content-length", decoder.failure().getMessage());
+
+        StompEncoderDecoder longer = new StompEncoderDecoder();
+        longer.decodeFrames(ByteBuffer.wrap(bytes("SEND\ncontent-length:2\n\nhello\u0000")), frame -> { });
+        assertEquals("Invalid content-length", longer.failure().getMessage());
+    }
+
+    @Test
+    public void anErrorFromTheClientIsJustAFrame() {
+        List<StompFrameView> frames = decode(bytes("ERROR\nmessage:Frame too large\n\n\u0000"));
+        assertEquals(1, frames.size());
+        assertEquals(StompCommand.UNKNOWN, frames.get(0).getCommand());
+        assertNull(decoder.failure());
+    }
+
+    // copies, the decoder reuses its views
+    private List<StompFrameView> decode(byte[] input) {
+        List<StompFrameView> frames = new ArrayList<>();
+        decoder.decodeFrames(ByteBuffer.wrap(input), frame -> frames.add(frame.copy()));
+        return frames;
+    }
+
+    private static List<String> texts(List<StompFrameView> frames) {
+        List<String> texts = new ArrayList<>();
+        for (StompFrameView frame : frames) {
+            texts.add(frame.toString());
+        }
+        return texts;
+    }
+
+    private static byte[] bytes(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,120 @@
+package bgu.spl.net.impl.stomp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+public class StompFrameViewTest {
+
+    @Test
+    public void readsCommandHeadersAndBody() {
+        StompFrameView frame = StompFrameView.of("\n\nSEND\ndestination:/sports\nreceipt:7\n\nthe body\nof it");
+        assertEquals(StompCommand.SEND, frame.getCommand());
+        assertTrue(frame.commandEquals("SEND"));
+        assertFalse(frame.commandEquals("SENDX"));
+        assertEquals("/sports", frame.getHeader("destination"));
+        assertTrue(frame.hasHeader("receipt"));
+        assertFalse(frame.hasHeader("receipt-id"));
+        assertNull(frame.getHeader("id"));
+        assertEquals("the body\nof it", frame.getBody());
+    }
+
+    @Test
+    public void carriageReturnsEndLinesToo() {
+        StompFrameView frame = StompFrameView.of("ACK\r\nid:12\r\n\r\nbody");
+        assertEquals(StompCommand.ACK, frame.getCommand());
+        assertEquals("12", frame.getHeader("id"));
+        assertEquals("body", frame.getBody());
+    }
+
+    @Test
+    public void theFirstOfARepeatedHeaderCounts() {
+        StompFrameView frame = StompFrameView.of("SEND\nfoo:first\nfoo:second\n\n");
+        assertEquals("first", frame.getHeader("foo"));
+        assertTrue(frame.headerEquals("foo", "first"));
+        assertFalse(frame.headerEquals("foo", "second"));
+        assertFalse(frame.headerEquals("bar", "first"));
+    }
+
+    @Test
+    public void manyHeaders() {
+        StringBuilder text = new StringBuilder("SEND\n");
+        for (int i = 0; i < 100; i++) {
+            text.append("h").append(i).append(':').append(i).append('\n');
+        }
+        StompFrameView frame = StompFrameView.of(text.append('\n').toString());
+        for (int i = 0; i < 100; i++) {
+            assertEquals(i, frame.getIntHeader("h" + i));
+        }
+        assertEquals("", frame.getBody());
+    }
+
+    @Test
+    public void headerNamesAreMatchedWhole() {
+        StompFrameView frame = StompFrameView.of("SUBSCRIBE\nidx:1\nid:2\nvalue:with:colons\n\n");
+        assertEquals(2, frame.getIntHeader("id"));
+        assertEquals("with:colons", frame.getHeader("value"));
+        assertNull(frame.getHeader("i"));
+    }
+
+    @Test
+    public void parsesNumbers() {
+        StompFrameView frame = StompFrameView.of("ACK\nid:42\nneg:-17\nbig:9223372036854775807\nint:2147483647\n\n");
+        assertEquals(42, frame.getIntHeader("id"));
+        assertEquals(-17, frame.getIntHeader("neg"));
+        assertEquals(Long.MAX_VALUE, frame.getLongHeader("big"));
+        assertEquals(Integer.MAX_VALUE, frame.getIntHeader("int"));
+        assertEquals(Integer.MAX_VALUE, frame.getLongHeader("int"));
+    }
+
+    @Test
+    public void rejectsWhatIsNotANumber() {
+        StompFrameView frame = StompFrameView.of("ACK\nempty:\nminus:-\ntext:x1\nspace: 1\n"
+                + "overflow:9223372036854775808\nlong:99999999999999999999\nnotInt:2147483648\n\n");
+        for (String header : new String[] {"missing", "empty", "minus", "text", "space", "overflow", "long"}) {
+            try {
+                frame.getLongHeader(header);
+                fail(header + " is not a long");
+            } catch (NumberFormatException expected) {
+            }
+        }
+        try {
+            frame.getIntHeader("notInt");
+            fail("2147483648 is not an int");
+        } catch (NumberFormatException expected) {
+        }
+    }
+
+    @Test
+    public void unknownCommands() {
+        StompFrameView frame = StompFrameView.of("HELLO\n\n");
+        assertEquals(StompCommand.UNKNOWN, frame.getCommand());
+        assertEquals("HELLO", frame.getCommandText());
+        assertTrue(frame.commandEquals("HELLO"));
+        // the command is matched whole, not by its start
+        assertEquals(StompCommand.UNKNOWN, StompFrameView.of("SENDING\n\n").getCommand());
+    }
+
+    @Test
+    public void aReusedViewShowsTheNextFrameAndACopyStays() {
+        byte[] bytes = "xxSEND\ndestination:/a\n\nfirst\u0000BEGIN\ntransaction:t\n\n\u0000".getBytes(StandardCharsets.UTF_8);
+        StompFrameView view = new StompFrameView();
+        view.wrap(bytes, 2, 28);
+        assertEquals("first", view.getBody());
+        StompFrameView copy = view.copy();
+        view.wrap(bytes, 29, bytes.length - 1);
+        assertEquals(StompCommand.BEGIN, view.getCommand());
+        assertEquals("t", view.getHeader("transaction"));
+        assertFalse(view.hasHeader("destination"));
+        assertEquals("", view.getBody());
+        assertEquals(StompCommand.SEND, copy.getCommand());
+        assertEquals("/a", copy.getHeader("destination"));
+        assertEquals("first", copy.getBody());
+    }
+}
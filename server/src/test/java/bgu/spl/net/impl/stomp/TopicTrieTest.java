@@ -0,0 +1,69 @@
+package bgu.spl.net.impl.stomp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.junit.Test;
+
+public class TopicTrieTest {
+
+    private static final String[] PATTERNS = {
+        "/sports/*", "/sports/#", "/#", "/*", "/sports/*/goals", "/sports", "/news/#", "/*/*",
+    };
+    private static final String[] DESTINATIONS = {
+        "/sports", "/sports/germany_japan", "/sports/germany_japan/goals", "/news", "/news/today/late",
+        "/", "/sports/", "/weather",
+    };
+
+    @Test
+    public void matchesOnePattern() {
+        assertTrue(TopicTrie.matches("/sports/*", "/sports/germany_japan"));
+        assertFalse(TopicTrie.matches("/sports/*", "/sports/germany_japan/goals"));
+        assertTrue(TopicTrie.matches("/sports/#", "/sports"));
+        assertTrue(TopicTrie.matches("/sports/#", "/sports/germany_japan/goals"));
+        assertFalse(TopicTrie.matches("/sports/#", "/news"));
+        assertFalse(TopicTrie.matches("/sports/*", "/sports"));
+    }
+
+    @Test
+    public void matchesAgreesWithTheTrie() {
+        for (String pattern : PATTERNS) {
+            TopicTrie<String> trie = new TopicTrie<>();
+            trie.add(pattern, pattern);
+            for (String destination : DESTINATIONS) {
+                assertEquals(pattern + " against " + destination, !trie.match(destination).isEmpty(),
+                        TopicTrie.matches(pattern, destination));
+            }
+        }
+    }
+
+    @Test
+    public void matchedByAgreesWithMatches() {
+        TopicTrie<String> destinations = new TopicTrie<>();
+        for (String destination : DESTINATIONS) {
+            destinations.add(destination, destination);
+        }
+        for (String pattern : PATTERNS) {
+            List<String> matched = destinations.matchedBy(pattern);
+            for (String destination : DESTINATIONS) {
+                assertEquals(pattern + " against " + destination, TopicTrie.matches(pattern, destination),
+                        matched.contains(destination));
+            }
+        }
+    }
+
+    @Test
+    public void removedPatternsNoLongerMatch() {
+        TopicTrie<String> trie = new TopicTrie<>();
+        trie.add("/sports/*", "a");
+        trie.add("/sports/*", "b");
+        trie.remove("/sports/*", "a");
+        assertEquals(1, trie.match("/sports/germany_japan").size());
+        trie.remove("/sports/*", "b");
+        assertTrue(trie.isEmpty());
+        assertTrue(trie.match("/sports/germany_japan").isEmpty());
+    }
+}
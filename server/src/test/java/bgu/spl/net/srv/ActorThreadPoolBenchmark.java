@@ -0,0 +1,85 @@
+package bgu.spl.net.srv;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Tasks per second through the mailbox ActorThreadPool against the legacy one
+ * it replaced. Every invocation submits TASKS tasks spread round robin over
+ * the given number of actors, from the benchmark thread like a selector
+ * would, and waits until the last one ran.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ActorThreadPoolBenchmark {
+
+    private static final int TASKS = 100_000;
+    private static final int THREADS = 4;
+
+    @Param({"1", "64", "4096"})
+    public int actors;
+
+    private ActorThreadPool pool;
+    private ActorThreadPool.Mailbox[] mailboxes;
+    private LegacyActorThreadPool legacyPool;
+    private Object[] acts;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        pool = new ActorThreadPool(THREADS);
+        legacyPool = new LegacyActorThreadPool(THREADS);
+        mailboxes = new ActorThreadPool.Mailbox[actors];
+        acts = new Object[actors];
+        for (int i = 0; i < actors; i++) {
+            mailboxes[i] = new ActorThreadPool.Mailbox();
+            acts[i] = new Object();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        pool.shutdown();
+        legacyPool.shutdown();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(TASKS)
+    public void mailbox() throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(TASKS);
+        Runnable task = done::countDown;
+        for (int i = 0; i < TASKS; i++) {
+            pool.submit(mailboxes[i % actors], task);
+        }
+        done.await();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(TASKS)
+    public void legacy() throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(TASKS);
+        Runnable task = done::countDown;
+        for (int i = 0; i < TASKS; i++) {
+            legacyPool.submit(acts[i % actors], task);
+        }
+        done.await();
+    }
+}